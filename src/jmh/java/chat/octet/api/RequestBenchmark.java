@@ -0,0 +1,69 @@
+package chat.octet.api;
+
+import chat.octet.api.model.ChatCompletionRequestParameter;
+import chat.octet.model.parameters.GenerateParameter;
+import chat.octet.utils.CommonUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    private static final String COMPLETION_REQUEST = "{\"model\":\"Llama2-chat\",\"user\":\"benchmark\",\"stream\":true," +
+            "\"prompt\":\"You are a helpful assistant. Who are you?\"," +
+            "\"temperature\":0.6,\"top_k\":40,\"top_p\":0.9,\"max_tokens\":256,\"repeat_penalty\":1.1,\"stop\":[\"</s>\"],\"timeout\":5}";
+
+    private ObjectMapper mapper;
+    private byte[] completionRequest;
+    private byte[] detokenizeRequest;
+    private ChatCompletionRequestParameter requestParams;
+
+    @Setup
+    public void setup() throws IOException {
+        mapper = new ObjectMapper();
+        completionRequest = COMPLETION_REQUEST.getBytes(StandardCharsets.UTF_8);
+        detokenizeRequest = IntStream.range(0, 512).mapToObj(String::valueOf).collect(Collectors.joining(",", "[", "]")).getBytes(StandardCharsets.UTF_8);
+        requestParams = mapper.readValue(completionRequest, ChatCompletionRequestParameter.class);
+    }
+
+    @Benchmark
+    public ChatCompletionRequestParameter deserializeRequest() throws IOException {
+        return mapper.readValue(completionRequest, ChatCompletionRequestParameter.class);
+    }
+
+    @Benchmark
+    public GenerateParameter generateParameter() {
+        return ChatCompletionService.getGenerateParameter(requestParams);
+    }
+
+    @Benchmark
+    public int[] parseDetokenizeRequest() throws IOException {
+        return mapper.readValue(detokenizeRequest, int[].class);
+    }
+
+    @Benchmark
+    public String randomString() {
+        return CommonUtils.randomString("octetchat");
+    }
+
+}
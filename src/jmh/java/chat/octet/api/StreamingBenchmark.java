@@ -0,0 +1,115 @@
+package chat.octet.api;
+
+import chat.octet.api.model.ChatCompletionChunk;
+import chat.octet.api.model.ChatCompletionData;
+import chat.octet.model.beans.Token;
+import chat.octet.model.enums.FinishReason;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import org.objenesis.ObjenesisStd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-token work of the token streams (SSE frames and binary frames), fed by a stub token source
+ * so that no model file is required. The Jackson chunk serialization is kept as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamingBenchmark {
+
+    private static final int TOKENS = 256;
+    private static final String[] VOCAB = {"Hello", ",", " I", " am", " a", " llama", " model", " running", " on", " the", " JVM", ".", "\n", " 你好"};
+
+    private ObjectMapper mapper;
+    private DataBufferFactory bufferFactory;
+    private Token[] tokens;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        mapper = new ObjectMapper();
+        bufferFactory = DefaultDataBufferFactory.sharedInstance;
+        tokens = new Token[TOKENS];
+        for (int i = 0; i < TOKENS; i++) {
+            tokens[i] = token(i % VOCAB.length, VOCAB[i % VOCAB.length], i == TOKENS - 1 ? FinishReason.FINISHED : FinishReason.NONE);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void sseFrames(Blackhole blackhole) {
+        SseChunkEncoder encoder = new SseChunkEncoder("octetchat-benchmark", "Llama2-chat", true);
+        for (Token token : tokens) {
+            DataBuffer buffer = encoder.encode(bufferFactory, token);
+            blackhole.consume(buffer.readableByteCount());
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void binaryFrames(Blackhole blackhole) {
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(token -> token.getFinishReason().isFinished() ? null : token.getText(), null);
+        for (Token token : tokens) {
+            DataBuffer buffer = encoder.encode(bufferFactory, token);
+            blackhole.consume(buffer.readableByteCount());
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public void jacksonChunks(Blackhole blackhole) throws JsonProcessingException {
+        for (Token token : tokens) {
+            ChatCompletionData data = new ChatCompletionData("content", token.getText(), token.getFinishReason().name());
+            blackhole.consume(mapper.writeValueAsBytes(new ChatCompletionChunk("octetchat-benchmark", "Llama2-chat", Lists.newArrayList(data))));
+        }
+    }
+
+    /**
+     * Tokens are only created by the model, the fields are set by type.
+     */
+    private static Token token(int id, String text, FinishReason finishReason) throws ReflectiveOperationException {
+        Token token = new ObjenesisStd().newInstance(Token.class);
+        boolean idSet = false;
+        for (Field field : Token.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            field.setAccessible(true);
+            if (field.getType() == int.class && !idSet) {
+                field.setInt(token, id);
+                idSet = true;
+            } else if (field.getType() == String.class) {
+                field.set(token, text);
+            } else if (field.getType() == FinishReason.class) {
+                field.set(token, finishReason);
+            }
+        }
+        return token;
+    }
+
+}
@@ -0,0 +1,252 @@
+package chat.octet.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays a request trace (or a synthetic one) against the completion endpoints and reports TTFT,
+ * inter-token latency, end-to-end latency and throughput.
+ * <p>
+ * Trace files are JSONL, one request per line: {"offset_ms": 0, "endpoint": "chat" | "completions", "body": {...}}.
+ * Latencies are measured from the scheduled arrival of a request, so time spent waiting for
+ * a free connection under the concurrency cap counts against the server (no coordinated omission).
+ * <p>
+ * Run with: mvn -P benchmark test-compile exec:exec@load-test -Dload.args="--stub --requests 200 --rate 4"
+ */
+public final class LoadGenerator {
+
+    private static final String[] WORDS = {"the", "llama", "model", "runs", "on", "a", "plain", "CPU", "box", "and", "streams", "tokens"};
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Histogram ttft = new ConcurrentHistogram(3);
+    private final Histogram itl = new ConcurrentHistogram(3);
+    private final Histogram latency = new ConcurrentHistogram(3);
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private static final class TraceRequest {
+        //scheduled arrival from the start of the run, or -1 to send as soon as a connection is free
+        private final long arrivalNanos;
+        private final boolean chat;
+        private final boolean stream;
+        private final String body;
+
+        private TraceRequest(long arrivalNanos, boolean chat, JsonNode body) {
+            this.arrivalNanos = arrivalNanos;
+            this.chat = chat;
+            this.stream = body.path("stream").asBoolean(false);
+            this.body = body.toString();
+        }
+    }
+
+    public void run(String url, List<TraceRequest> requests, int concurrency) {
+        ConnectionProvider provider = ConnectionProvider.builder("load-generator").maxConnections(concurrency).pendingAcquireMaxCount(-1).build();
+        WebClient client = WebClient.builder().baseUrl(url).clientConnector(new ReactorClientHttpConnector(HttpClient.create(provider))).build();
+        long startNanos = System.nanoTime();
+        Flux.fromIterable(requests)
+                .concatMap(request -> {
+                    long delay = request.arrivalNanos < 0 ? 0 : request.arrivalNanos - (System.nanoTime() - startNanos);
+                    return delay > 0 ? Mono.delay(Duration.ofNanos(delay)).thenReturn(request) : Mono.just(request);
+                })
+                .flatMap(request -> send(client, request, request.arrivalNanos < 0 ? System.nanoTime() : startNanos + request.arrivalNanos), concurrency)
+                .blockLast();
+        long elapsed = System.nanoTime() - startNanos;
+        provider.disposeLater().block();
+        report(requests.size(), elapsed);
+    }
+
+    private Mono<Void> send(WebClient client, TraceRequest request, long scheduledNanos) {
+        WebClient.RequestHeadersSpec<?> spec = client.post().uri(request.chat ? "/v1/chat/completions" : "/v1/completions")
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM, MediaType.APPLICATION_JSON)
+                .bodyValue(request.body);
+        AtomicLong last = new AtomicLong();
+        return spec.exchangeToFlux(response -> {
+                    if (!response.statusCode().is2xxSuccessful()) {
+                        errors.computeIfAbsent(String.valueOf(response.rawStatusCode()), key -> new LongAdder()).increment();
+                        return response.releaseBody().thenMany(Flux.empty());
+                    }
+                    Flux<String> frames = request.stream ? response.bodyToFlux(String.class) : response.bodyToMono(String.class).flux();
+                    return frames.doOnNext(frame -> onFrame(frame, request.stream, scheduledNanos, last))
+                            .doOnComplete(() -> {
+                                latency.recordValue(micros(System.nanoTime() - scheduledNanos));
+                                completed.increment();
+                            });
+                })
+                .onErrorResume(e -> {
+                    errors.computeIfAbsent(e.getClass().getSimpleName(), key -> new LongAdder()).increment();
+                    return Flux.empty();
+                })
+                .then();
+    }
+
+    private void onFrame(String frame, boolean stream, long scheduledNanos, AtomicLong last) {
+        if (!stream) {
+            return;
+        }
+        long now = System.nanoTime();
+        JsonNode choice;
+        try {
+            choice = MAPPER.readTree(frame).path("choices").path(0);
+        } catch (IOException e) {
+            errors.computeIfAbsent("malformed frame", key -> new LongAdder()).increment();
+            return;
+        }
+        if (!"NONE".equals(choice.path("finish_reason").asText("NONE"))) {
+            return;
+        }
+        long previous = last.getAndSet(now);
+        if (previous == 0) {
+            ttft.recordValue(micros(now - scheduledNanos));
+        } else {
+            itl.recordValue(micros(now - previous));
+        }
+        tokens.increment();
+    }
+
+    private void report(int total, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("requests: %d, completed: %d, failed: %d, elapsed: %.2f s%n", total, completed.sum(), total - completed.sum(), seconds);
+        errors.forEach((reason, count) -> System.out.printf("  failures %s: %d%n", reason, count.sum()));
+        System.out.printf("throughput: %.2f req/s, %.2f tokens/s (streamed frames)%n", completed.sum() / seconds, tokens.sum() / seconds);
+        System.out.printf("%-8s %10s %10s %10s %10s %10s%n", "ms", "p50", "p90", "p99", "max", "count");
+        print("ttft", ttft);
+        print("itl", itl);
+        print("e2e", latency);
+    }
+
+    private static void print(String name, Histogram histogram) {
+        System.out.printf("%-8s %10.2f %10.2f %10.2f %10.2f %10d%n", name,
+                histogram.getValueAtPercentile(50) / 1000d, histogram.getValueAtPercentile(90) / 1000d,
+                histogram.getValueAtPercentile(99) / 1000d, histogram.getMaxValue() / 1000d, histogram.getTotalCount());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+    }
+
+    private static List<TraceRequest> readTrace(String file, boolean replayTiming) throws IOException {
+        List<TraceRequest> requests = Lists.newArrayList();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JsonNode node = MAPPER.readTree(line);
+            long arrival = replayTiming ? TimeUnit.MILLISECONDS.toNanos(node.path("offset_ms").asLong(0)) : -1;
+            requests.add(new TraceRequest(arrival, !"completions".equalsIgnoreCase(node.path("endpoint").asText("chat")), node.path("body")));
+        }
+        return requests;
+    }
+
+    private static List<TraceRequest> synthesize(int count, boolean chat, boolean stream, int promptChars, int maxTokens, Random random) {
+        List<TraceRequest> requests = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder prompt = new StringBuilder(promptChars + 16);
+            while (prompt.length() < promptChars) {
+                prompt.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            ObjectNode body = MAPPER.createObjectNode().put("user", "load-" + i).put("stream", stream).put("max_tokens", maxTokens);
+            if (chat) {
+                body.putArray("messages").addObject().put("role", "user").put("content", prompt.toString());
+            } else {
+                body.put("prompt", prompt.toString());
+            }
+            requests.add(new TraceRequest(-1, chat, body));
+        }
+        return requests;
+    }
+
+    /**
+     * Spreads the requests over Poisson arrivals at the given rate per second.
+     */
+    private static List<TraceRequest> schedule(List<TraceRequest> requests, double rate, Random random) {
+        List<TraceRequest> scheduled = Lists.newArrayListWithCapacity(requests.size());
+        double arrival = 0;
+        for (TraceRequest request : requests) {
+            scheduled.add(new TraceRequest((long) (arrival * 1e9), request.chat, readBody(request.body)));
+            arrival += -Math.log(1 - random.nextDouble()) / rate;
+        }
+        return scheduled;
+    }
+
+    private static JsonNode readBody(String body) {
+        try {
+            return MAPPER.readTree(body);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid request body: " + body, e);
+        }
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption("h", "help", false, "Show this help message and exit.");
+        options.addOption(null, "url", true, "Server base url (default: http://localhost:8152).");
+        options.addOption(null, "stub", false, "Start a stub model server in process and target it.");
+        options.addOption(null, "stub-replicas", true, "Concurrent generations of the stub server (default: 1).");
+        options.addOption(null, "stub-token-rate", true, "Tokens per second of a stub replica (default: 20).");
+        options.addOption(null, "trace", true, "JSONL request trace, synthetic requests are generated if not set.");
+        options.addOption(null, "replay-timing", false, "Send trace requests at their recorded offset_ms.");
+        options.addOption(null, "requests", true, "Synthetic requests (default: 100).");
+        options.addOption(null, "endpoint", true, "Synthetic requests endpoint, chat or completions (default: chat).");
+        options.addOption(null, "json", false, "Synthetic requests wait for the whole JSON response instead of streaming SSE.");
+        options.addOption(null, "prompt-chars", true, "Synthetic prompt length in characters (default: 256).");
+        options.addOption(null, "max-tokens", true, "Synthetic max_tokens (default: 128).");
+        options.addOption(null, "concurrency", true, "Max requests in flight (default: 8).");
+        options.addOption(null, "rate", true, "Poisson arrivals per second (default: 0, 0 = closed loop at max concurrency).");
+        options.addOption(null, "seed", true, "Random seed of synthetic prompts and arrivals (default: 42).");
+        CommandLine cmd = new DefaultParser().parse(options, args, false);
+        if (cmd.hasOption("help")) {
+            new HelpFormatter().printHelp("LoadGenerator", options);
+            return;
+        }
+        Random random = new Random(Long.parseLong(cmd.getOptionValue("seed", "42")));
+        List<TraceRequest> requests = cmd.hasOption("trace")
+                ? readTrace(cmd.getOptionValue("trace"), cmd.hasOption("replay-timing"))
+                : synthesize(Integer.parseInt(cmd.getOptionValue("requests", "100")), !"completions".equalsIgnoreCase(cmd.getOptionValue("endpoint", "chat")),
+                !cmd.hasOption("json"), Integer.parseInt(cmd.getOptionValue("prompt-chars", "256")), Integer.parseInt(cmd.getOptionValue("max-tokens", "128")), random);
+        double rate = Double.parseDouble(cmd.getOptionValue("rate", "0"));
+        if (rate > 0 && !cmd.hasOption("replay-timing")) {
+            requests = schedule(requests, rate, random);
+        }
+        int concurrency = Integer.parseInt(cmd.getOptionValue("concurrency", "8"));
+        if (!cmd.hasOption("stub")) {
+            new LoadGenerator().run(cmd.getOptionValue("url", "http://localhost:8152"), requests, concurrency);
+            return;
+        }
+        try (StubModelServer server = new StubModelServer(0, Integer.parseInt(cmd.getOptionValue("stub-replicas", "1")), Math.max(concurrency, 32),
+                Integer.parseInt(cmd.getOptionValue("stub-token-rate", "20")), 500, 128)) {
+            new LoadGenerator().run("http://localhost:" + server.getPort(), requests, concurrency);
+        }
+    }
+
+}
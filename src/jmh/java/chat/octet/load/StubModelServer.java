@@ -0,0 +1,149 @@
+package chat.octet.load;
+
+import chat.octet.api.model.ChatCompletionChunk;
+import chat.octet.api.model.ChatCompletionData;
+import chat.octet.api.model.ChatCompletionRequestParameter;
+import chat.octet.engine.AdmissionController;
+import chat.octet.exceptions.TooManyRequestsException;
+import chat.octet.model.beans.ChatMessage;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Deterministic stand-in for the model server: same routes and wire format as
+ * {@link chat.octet.api.ChatCompletionService}, tokens are emitted at a fixed rate after a prefill
+ * delay proportional to the prompt, and requests queue in an {@link AdmissionController}
+ * with one lane per replica like the single model context.
+ */
+@Slf4j
+public final class StubModelServer implements AutoCloseable {
+
+    private static final String MODEL = "stub";
+    private static final String[] VOCAB = {"Hello", ",", " I", " am", " a", " llama", " model", " running", " on", " the", " JVM", ".", "\n"};
+    //characters per prompt token, for the prefill delay
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private final int tokenRate;
+    private final int prefillRate;
+    private final int maxTokens;
+    private final AdmissionController admissionController;
+    private final DisposableServer server;
+
+    public StubModelServer(int port, int replicas, int maxQueue, int tokenRate, int prefillRate, int maxTokens) {
+        this.tokenRate = tokenRate;
+        this.prefillRate = prefillRate;
+        this.maxTokens = maxTokens;
+        this.admissionController = new AdmissionController(replicas, maxQueue, Duration.ofSeconds(60));
+        this.server = HttpServer.create().port(port)
+                .handle(new ReactorHttpHandlerAdapter(RouterFunctions.toHttpHandler(routes())))
+                .bindNow();
+        log.info(MessageFormat.format("Stub model server started on port {0}, replicas: {1}, token rate: {2}/s, prefill rate: {3}/s.",
+                String.valueOf(server.port()), replicas, tokenRate, prefillRate));
+    }
+
+    public int getPort() {
+        return server.port();
+    }
+
+    private RouterFunction<ServerResponse> routes() {
+        return RouterFunctions.route(RequestPredicates.POST("/v1/chat/completions"), request -> complete(request, true))
+                .andRoute(RequestPredicates.POST("/v1/completions"), request -> complete(request, false));
+    }
+
+    private Mono<ServerResponse> complete(ServerRequest request, boolean chat) {
+        return request.bodyToMono(ChatCompletionRequestParameter.class).flatMap(params -> {
+            String id = "stub-" + UUID.randomUUID();
+            String model = StringUtils.defaultIfBlank(params.getModel(), MODEL);
+            int tokens = params.getMaxNewTokensSize() != null && params.getMaxNewTokensSize() > 0 ? params.getMaxNewTokensSize() : maxTokens;
+            return admissionController.acquire(model, params.getUser()).flatMap(ticket -> {
+                Flux<String> generated = generate(getPromptLength(params, chat), tokens).doFinally(signal -> ticket.release());
+                if (params.isStream()) {
+                    Flux<ChatCompletionChunk> frames = generated.map(text -> chunk(id, model, chat, text, "NONE"))
+                            .concatWith(Mono.fromCallable(() -> chunk(id, model, chat, "[DONE]", "LENGTH")));
+                    return ServerResponse.ok().contentType(MediaType.TEXT_EVENT_STREAM).body(frames, ChatCompletionChunk.class);
+                }
+                return generated.collect(Collectors.joining()).flatMap(content -> {
+                    ChatCompletionData data = chat ? new ChatCompletionData(ChatMessage.toAssistant(content), "LENGTH") : new ChatCompletionData(content, "LENGTH");
+                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON)
+                            .body(BodyInserters.fromValue(new ChatCompletionChunk(id, model, Lists.newArrayList(data))));
+                });
+            });
+        }).onErrorResume(TooManyRequestsException.class, e -> ServerResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header("Retry-After", String.valueOf(e.getRetryAfter())).bodyValue(e.getMessage())
+        ).onErrorResume(e -> ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE).bodyValue(String.valueOf(e.getMessage())));
+    }
+
+    private Flux<String> generate(int promptLength, int tokens) {
+        Duration prefill = Duration.ofMillis(prefillRate > 0 ? promptLength / CHARS_PER_TOKEN * 1000L / prefillRate : 0);
+        Duration interval = Duration.ofNanos(1_000_000_000L / tokenRate);
+        //buffered like the sink of a generation, a slow client never stalls the decoding clock
+        return Flux.interval(prefill.plus(interval), interval).onBackpressureBuffer().take(tokens).map(i -> VOCAB[(int) (i % VOCAB.length)]);
+    }
+
+    private static int getPromptLength(ChatCompletionRequestParameter params, boolean chat) {
+        if (!chat) {
+            return StringUtils.length(params.getPrompt());
+        }
+        return params.getMessages() == null ? 0 : params.getMessages().stream().mapToInt(message -> StringUtils.length(message.getContent())).sum();
+    }
+
+    private static ChatCompletionChunk chunk(String id, String model, boolean chat, String text, String finishReason) {
+        ChatCompletionData data = chat ? new ChatCompletionData("content", text, finishReason) : new ChatCompletionData(text, finishReason);
+        return new ChatCompletionChunk(id, model, Lists.newArrayList(data));
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    public static void main(String[] args) throws ParseException {
+        Options options = new Options();
+        options.addOption("h", "help", false, "Show this help message and exit.");
+        options.addOption(null, "port", true, "Listen port (default: 8152).");
+        options.addOption(null, "replicas", true, "Concurrent generations, like the model contexts (default: 1).");
+        options.addOption(null, "max-queue", true, "Requests waiting for a replica before 429 (default: 32).");
+        options.addOption(null, "token-rate", true, "Generated tokens per second of a replica (default: 20).");
+        options.addOption(null, "prefill-rate", true, "Prompt tokens per second of a replica (default: 500, 0 = no prefill delay).");
+        options.addOption(null, "max-tokens", true, "Generated tokens when the request has no max_tokens (default: 128).");
+        CommandLine cmd = new DefaultParser().parse(options, args, false);
+        if (cmd.hasOption("help")) {
+            new HelpFormatter().printHelp("StubModelServer", options);
+            return;
+        }
+        StubModelServer server = new StubModelServer(
+                Integer.parseInt(cmd.getOptionValue("port", "8152")),
+                Integer.parseInt(cmd.getOptionValue("replicas", "1")),
+                Integer.parseInt(cmd.getOptionValue("max-queue", "32")),
+                Integer.parseInt(cmd.getOptionValue("token-rate", "20")),
+                Integer.parseInt(cmd.getOptionValue("prefill-rate", "500")),
+                Integer.parseInt(cmd.getOptionValue("max-tokens", "128"))
+        );
+        server.server.onDispose().block();
+    }
+
+}
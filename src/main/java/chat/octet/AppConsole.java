@@ -19,6 +19,10 @@ public class AppConsole {
         OPTIONS.addOption("h", "help", false, "Show this help message and exit.");
         OPTIONS.addOption("c", "completions", false, "Use completions mode.");
         OPTIONS.addOption("m", "model", true, "Load model name, default: llama2-chat.");
+        //Batch parameters
+        OPTIONS.addOption(null, "batch-input", true, "Run a JSONL file of requests instead of the interactive mode.");
+        OPTIONS.addOption(null, "batch-output", true, "Output JSONL file of the batch results (default: <batch-input>.out.jsonl).");
+        OPTIONS.addOption(null, "checkpoint-interval", true, "Checkpoint the batch progress every N lines (default: 100).");
         //Generate parameters
         OPTIONS.addOption(null, "system", true, "Set a system prompt.");
         OPTIONS.addOption(null, "temperature", true, "Adjust the randomness of the generated text (default: 0.8).");
@@ -87,6 +91,13 @@ public class AppConsole {
             GenerateParameter generateParams = parseCmdParameter(cmd);
             String system = cmd.getOptionValue("system", "Answer the questions.");
 
+            if (cmd.hasOption("batch-input")) {
+                String input = cmd.getOptionValue("batch-input");
+                new BatchInference(model, generateParams, system, Integer.parseInt(cmd.getOptionValue("checkpoint-interval", "100")))
+                        .run(input, cmd.getOptionValue("batch-output", input + ".out.jsonl"));
+                return;
+            }
+
             while (true) {
                 System.out.print("\n\nUser: ");
                 String input = bufferedReader.readLine();
@@ -0,0 +1,280 @@
+package chat.octet;
+
+import chat.octet.api.ChatCompletionService;
+import chat.octet.api.model.ChatCompletionRequestParameter;
+import chat.octet.components.StopSequenceMatcher;
+import chat.octet.engine.LogitsMaskCache;
+import chat.octet.exceptions.ServerException;
+import chat.octet.model.LlamaService;
+import chat.octet.model.Model;
+import chat.octet.model.beans.ChatMessage;
+import chat.octet.model.beans.Token;
+import chat.octet.model.parameters.GenerateParameter;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Offline inference of a JSONL file, one request per line with the fields of the HTTP API
+ * ({"id", "prompt" | "messages", "temperature", "max_tokens", "stop", ...}), results are
+ * appended to the output JSONL in input order.
+ * <p>
+ * Parsing runs on a reader thread and encoding on a writer thread, the model thread only tokenizes
+ * and generates (the native tokenizer shares the model context). Progress is checkpointed next to the
+ * output, an interrupted or failed run resumes after the last checkpointed line.
+ */
+@Slf4j
+public final class BatchInference {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int QUEUE_SIZE = 64;
+    private static final int LOGITS_MASK_CACHE_SIZE = 16;
+    private static final Item END = new Item(-1, null);
+
+    private final Model model;
+    private final GenerateParameter defaults;
+    private final String system;
+    private final int checkpointInterval;
+    //lines sharing a JSON schema or grammar share its token masks
+    private final LogitsMaskCache logitsMaskCache = new LogitsMaskCache(LOGITS_MASK_CACHE_SIZE);
+
+    private long generatedTokens;
+    private long generateTime;
+    private long failed;
+    private volatile IOException readError;
+    private volatile IOException writeError;
+
+    private static final class Item {
+        private final long line;
+        private final String id;
+        private ChatCompletionRequestParameter params;
+        private String system;
+        private String input;
+        private String error;
+        private String output;
+
+        private Item(long line, String id) {
+            this.line = line;
+            this.id = id;
+        }
+    }
+
+    public BatchInference(Model model, GenerateParameter defaults, String system, int checkpointInterval) {
+        this.model = model;
+        this.defaults = defaults;
+        this.system = system;
+        this.checkpointInterval = Math.max(checkpointInterval, 1);
+    }
+
+    public void run(String input, String output) throws Exception {
+        Path outputFile = Paths.get(output);
+        Path checkpointFile = Paths.get(output + CHECKPOINT_SUFFIX);
+        long[] checkpoint = readCheckpoint(checkpointFile);
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            //drop the results written after the last checkpoint, they are generated again
+            channel.truncate(checkpoint[1]);
+        }
+        if (checkpoint[0] > 0) {
+            log.info(MessageFormat.format("Resume batch from line {0} of {1}.", checkpoint[0], input));
+        }
+
+        BlockingQueue<Item> pending = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        BlockingQueue<Item> completed = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        Thread reader = new Thread(() -> read(input, checkpoint[0], pending), "batch-reader");
+        long[] written = {0L};
+        Thread writer = new Thread(() -> written[0] = write(outputFile, checkpointFile, checkpoint, completed), "batch-writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        long startTime = System.currentTimeMillis();
+        reader.start();
+        writer.start();
+
+        Item item;
+        while ((item = pending.take()) != END) {
+            if (item.error == null) {
+                generate(item);
+            } else {
+                failed++;
+            }
+            completed.put(item);
+        }
+        completed.put(END);
+        writer.join();
+        if (readError != null) {
+            throw new ServerException(MessageFormat.format("Read batch input {0} error, run again to resume from the last checkpoint", input), readError);
+        }
+        if (writeError != null) {
+            throw new ServerException(MessageFormat.format("Write batch output {0} error, run again to resume from the last checkpoint", output), writeError);
+        }
+        Files.deleteIfExists(checkpointFile);
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        log.info(MessageFormat.format("Batch completed, lines: {0}, failed: {1}, elapsed: {2} ms, generated tokens: {3}, {4} tokens/s.",
+                written[0], failed, elapsed, generatedTokens, String.format("%.2f", generateTime == 0 ? 0d : generatedTokens * 1000d / generateTime)));
+    }
+
+    private void read(String input, long skip, BlockingQueue<Item> pending) {
+        try (BufferedReader bufferedReader = Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8)) {
+            String line;
+            long number = 0;
+            while ((line = bufferedReader.readLine()) != null) {
+                if (number++ < skip) {
+                    continue;
+                }
+                Item item = new Item(number, String.valueOf(number));
+                try {
+                    JsonNode node = MAPPER.readTree(line);
+                    item = new Item(number, node.path("id").asText(item.id));
+                    prepare(item, MAPPER.treeToValue(node, ChatCompletionRequestParameter.class));
+                } catch (Exception e) {
+                    item.error = e.getMessage();
+                }
+                pending.put(item);
+            }
+        } catch (IOException e) {
+            //the lines read so far are still generated and checkpointed
+            readError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            pending.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void prepare(Item item, ChatCompletionRequestParameter params) {
+        if (params.getMessages() != null && !params.getMessages().isEmpty()) {
+            List<ChatMessage> messages = params.getMessages();
+            ChatMessage first = messages.get(0);
+            ChatMessage last = messages.get(messages.size() - 1);
+            boolean hasSystem = "system".equalsIgnoreCase(String.valueOf(first.getRole()));
+            if (messages.size() > (hasSystem ? 2 : 1) || !"user".equalsIgnoreCase(String.valueOf(last.getRole()))) {
+                throw new ServerException("Batch chat supports one optional system message and one user message");
+            }
+            item.system = hasSystem ? first.getContent() : system;
+            item.input = last.getContent();
+        } else if (StringUtils.isNotBlank(params.getPrompt())) {
+            item.input = params.getPrompt();
+        } else {
+            throw new ServerException("Request must contain a prompt or messages");
+        }
+        //every line has its own chat status, released once generated
+        params.setUser("batch-" + item.line);
+        item.params = params;
+    }
+
+    private void generate(Item item) {
+        long startTime = System.currentTimeMillis();
+        StringBuilder content = new StringBuilder();
+        String finishReason = null;
+        int tokens = 0;
+        try {
+            int contextSize = model.getModelParams().getContextSize();
+            int promptTokens = LlamaService.tokenize(StringUtils.defaultString(item.system) + item.input, false, true).length;
+            if (promptTokens >= contextSize) {
+                throw new ServerException(MessageFormat.format("Prompt is too long, tokens: {0}, context size: {1}", promptTokens, contextSize));
+            }
+            GenerateParameter generateParams = ChatCompletionService.getGenerateParameter(item.params, defaults, logitsMaskCache);
+            Iterable<Token> generated = item.system != null ? model.chat(generateParams, item.system, item.input) : model.generate(generateParams, item.input);
+            for (Token token : generated) {
+                if (token.getFinishReason().isFinished()) {
+                    finishReason = token.getFinishReason().name();
+                    continue;
+                }
+                content.append(token.getText());
+                tokens++;
+            }
+        } catch (Exception e) {
+            item.error = e.getMessage();
+            failed++;
+            return;
+        } finally {
+            if (item.system != null) {
+                model.removeChatStatus(item.params.getUser());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        generatedTokens += tokens;
+        generateTime += elapsed;
+        String text = item.params.getStopWords() == null ? content.toString() : StopSequenceMatcher.truncate(item.params.getStopWords(), content.toString());
+        ObjectNode result = MAPPER.createObjectNode().put("id", item.id).put("text", text).put("finish_reason", finishReason)
+                .put("tokens", tokens).put("elapsed_ms", elapsed);
+        item.output = result.toString();
+    }
+
+    private long write(Path outputFile, Path checkpointFile, long[] checkpoint, BlockingQueue<Item> completed) {
+        long lines = checkpoint[0];
+        long bytes = checkpoint[1];
+        long written = 0;
+        try (OutputStream outputStream = Files.newOutputStream(outputFile, StandardOpenOption.APPEND)) {
+            Item item;
+            while ((item = completed.take()) != END) {
+                String output = item.error != null ? MAPPER.createObjectNode().put("id", item.id).put("error", item.error).toString() : item.output;
+                byte[] data = (output + "\n").getBytes(StandardCharsets.UTF_8);
+                outputStream.write(data);
+                bytes += data.length;
+                lines = item.line;
+                if (++written % checkpointInterval == 0) {
+                    outputStream.flush();
+                    writeCheckpoint(checkpointFile, lines, bytes);
+                }
+            }
+            outputStream.flush();
+            writeCheckpoint(checkpointFile, lines, bytes);
+        } catch (IOException e) {
+            writeError = e;
+            //keep draining, the model thread must not block on a full queue
+            try {
+                while (completed.take() != END) {
+                    //discarded, generated again on resume
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return written;
+    }
+
+    /**
+     * @return input lines done and output bytes written at the last checkpoint.
+     */
+    private static long[] readCheckpoint(Path checkpointFile) throws IOException {
+        if (!checkpointFile.toFile().isFile()) {
+            return new long[]{0L, 0L};
+        }
+        JsonNode node = MAPPER.readTree(checkpointFile.toFile());
+        return new long[]{node.path("lines").asLong(0), node.path("bytes").asLong(0)};
+    }
+
+    private static void writeCheckpoint(Path checkpointFile, long lines, long bytes) throws IOException {
+        File temp = new File(checkpointFile + ".tmp");
+        MAPPER.writeValue(temp, MAPPER.createObjectNode().put("lines", lines).put("bytes", bytes));
+        Files.move(temp.toPath(), checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
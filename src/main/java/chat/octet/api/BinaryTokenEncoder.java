@@ -0,0 +1,100 @@
+package chat.octet.api;
+
+import chat.octet.api.model.TokenLogprob;
+import chat.octet.model.beans.Token;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Writes compact little-endian token frames, the envelope (id, model) is sent once in the response headers.
+ * <pre>
+ * TOKEN         u8 type=0, u8 choice, i32 token id, u16 length, utf-8 text
+ * TOKEN_LOGPROB u8 type=2, u8 choice, i32 token id, f32 logprob, u16 length, utf-8 text
+ * FINISH        u8 type=1, u8 choice, u16 length, utf-8 finish reason
+ * </pre>
+ * Text held back by a stop sequence filter is flushed before FINISH with token id -1.
+ */
+public final class BinaryTokenEncoder implements TokenEncoder {
+
+    public static final byte TOKEN = 0;
+    public static final byte FINISH = 1;
+    public static final byte TOKEN_LOGPROB = 2;
+    private static final int MAX_TEXT_BYTES = 0xFFFF;
+
+    private final Function<Token, String> text;
+    private final Function<Token, TokenLogprob> logprobs;
+    //choice of the current frames, sampled choices are streamed one after another
+    private int index;
+
+    /**
+     * @param text     text sent for a token, for the finished token only the text held back so far.
+     * @param logprobs log-probabilities of a token, or null to send TOKEN frames.
+     */
+    public BinaryTokenEncoder(Function<Token, String> text, Function<Token, TokenLogprob> logprobs) {
+        this.text = text;
+        this.logprobs = logprobs;
+    }
+
+    @Override
+    public DataBuffer encode(DataBufferFactory bufferFactory, Token token) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(32);
+        writeToken(buffer, token);
+        return buffer;
+    }
+
+    @Override
+    public DataBuffer encode(DataBufferFactory bufferFactory, List<Token> tokens) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(tokens.size() * 16);
+        for (Token token : tokens) {
+            writeToken(buffer, token);
+        }
+        return buffer;
+    }
+
+    private void writeToken(DataBuffer buffer, Token token) {
+        if (!token.getFinishReason().isFinished()) {
+            TokenLogprob logprob = logprobs == null ? null : logprobs.apply(token);
+            writeText(buffer, token.getId(), logprob, text.apply(token));
+            return;
+        }
+        String rest = text.apply(token);
+        if (rest != null && !rest.isEmpty()) {
+            writeText(buffer, -1, null, rest);
+        }
+        buffer.write(FINISH);
+        buffer.write((byte) index);
+        writeString(buffer, token.getFinishReason().name());
+        index++;
+    }
+
+    private void writeText(DataBuffer buffer, int id, TokenLogprob logprob, String value) {
+        buffer.write(logprob == null ? TOKEN : TOKEN_LOGPROB);
+        buffer.write((byte) index);
+        writeInt(buffer, id);
+        if (logprob != null) {
+            writeInt(buffer, Float.floatToIntBits(logprob.getLogprob()));
+        }
+        writeString(buffer, value);
+    }
+
+    private static void writeString(DataBuffer buffer, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        //a single token or stop reason never comes close, truncated defensively
+        int length = Math.min(bytes.length, MAX_TEXT_BYTES);
+        buffer.write((byte) length);
+        buffer.write((byte) (length >>> 8));
+        buffer.write(bytes, 0, length);
+    }
+
+    private static void writeInt(DataBuffer buffer, int value) {
+        buffer.write((byte) value);
+        buffer.write((byte) (value >>> 8));
+        buffer.write((byte) (value >>> 16));
+        buffer.write((byte) (value >>> 24));
+    }
+
+}
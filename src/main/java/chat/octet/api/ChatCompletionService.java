@@ -3,25 +3,70 @@ package chat.octet.api;
 import chat.octet.api.model.ChatCompletionChunk;
 import chat.octet.api.model.ChatCompletionData;
 import chat.octet.api.model.ChatCompletionRequestParameter;
+import chat.octet.api.model.Logprobs;
+import chat.octet.api.model.TokenLogprob;
+import chat.octet.components.CancellationCriteria;
+import chat.octet.components.GrammarAutomaton;
+import chat.octet.components.GrammarLogitsProcessor;
+import chat.octet.components.JsonSchemaGrammar;
+import chat.octet.components.LogprobsProcessor;
+import chat.octet.components.StopSequenceCriteria;
+import chat.octet.components.StopSequenceFilter;
+import chat.octet.components.StopSequenceMatcher;
+import chat.octet.components.TokenGrammar;
+import chat.octet.components.TokenVocabulary;
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.ChatSession;
+import chat.octet.engine.ChatSessionManager;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.InferenceScheduler;
+import chat.octet.engine.LogitsMaskCache;
+import chat.octet.engine.PromptCache;
+import chat.octet.engine.ResponseCache;
+import chat.octet.exceptions.InferenceRejectedException;
+import chat.octet.exceptions.ServerException;
+import chat.octet.exceptions.TooManyRequestsException;
+import chat.octet.metrics.GenerationRecorder;
+import chat.octet.metrics.InferenceMetrics;
 import chat.octet.model.LlamaService;
 import chat.octet.model.Model;
-import chat.octet.model.TokenDecoder;
 import chat.octet.model.beans.ChatMessage;
 import chat.octet.model.beans.CompletionResult;
 import chat.octet.model.beans.Token;
+import chat.octet.model.enums.FinishReason;
+import chat.octet.model.components.criteria.StoppingCriteria;
 import chat.octet.model.components.criteria.StoppingCriteriaList;
 import chat.octet.model.components.criteria.impl.MaxTimeCriteria;
+import chat.octet.model.components.processor.LogitsProcessor;
 import chat.octet.model.components.processor.LogitsProcessorList;
 import chat.octet.model.components.processor.impl.CustomBiasLogitsProcessor;
 import chat.octet.model.parameters.GenerateParameter;
 import chat.octet.utils.CommonUtils;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.reactive.function.BodyInserter;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.server.RequestPredicates;
 import org.springframework.web.reactive.function.server.RouterFunction;
@@ -29,94 +74,86 @@ import org.springframework.web.reactive.function.server.RouterFunctions;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Configuration
 public class ChatCompletionService {
 
     private final static GenerateParameter DEFAULT_PARAMETER = GenerateParameter.builder().build();
+    private final static String ROLE_SYSTEM = "system";
+    private final static int MAX_SAMPLES = 16;
+    //grammar masks built per scheduler task
+    private final static int PRECOMPUTE_STATES = 64;
+    //envelope of binary token streams
+    private final static String HEADER_REQUEST_ID = "X-Request-Id";
+    private final static String HEADER_MODEL = "X-Model";
 
-    @Bean
-    public RouterFunction<ServerResponse> chatCompletionsFunction() {
-        return RouterFunctions.route(
-                RequestPredicates.POST("/v1/chat/completions").and(RequestPredicates.accept(MediaType.TEXT_EVENT_STREAM)),
-                serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> {
-                    long startTime = System.currentTimeMillis();
-                    List<ChatMessage> messages = requestParams.getMessages();
-                    if (messages == null || messages.isEmpty()) {
-                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
-                                .body(BodyInserters.fromValue("Request parameter 'messages' cannot be empty"));
-                    }
-                    if (messages.size() > 2) {
-                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
-                                .body(BodyInserters.fromValue("Request parameter 'messages' is too long (SIZE > 2), only include user and system messages (optional)."));
-                    }
-                    String system = null;
-                    if (messages.size() == 2) {
-                        system = messages.remove(0).getContent();
-                    }
-                    String user = messages.get(0).getContent();
-                    return doCompletions(requestParams, system, user, startTime, true);
-                })
-        );
-    }
+    @Value("${streaming.coalesce-tokens:1}")
+    Integer coalesceTokens;
 
-    @Bean
-    public RouterFunction<ServerResponse> completionsFunction() {
-        return RouterFunctions.route(
-                RequestPredicates.POST("/v1/completions").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
-                serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> {
-                    long startTime = System.currentTimeMillis();
-                    if (StringUtils.isBlank(requestParams.getPrompt())) {
-                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
-                                .body(BodyInserters.fromValue("Request parameter 'prompt' cannot be empty"));
-                    }
-                    return doCompletions(requestParams, null, requestParams.getPrompt(), startTime, false);
-                })
-        );
-    }
+    @Value("${streaming.coalesce-interval:50}")
+    Long coalesceInterval;
 
-    @Bean
-    public RouterFunction<ServerResponse> tokenizeFunction() {
-        return RouterFunctions.route(
-                RequestPredicates.POST("/v1/tokenize").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
-                serverRequest -> serverRequest.bodyToMono(String.class).flatMap(content -> {
-                    int[] tokens = LlamaService.tokenize(content, false, true);
-                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(tokens));
-                })
-        );
+    @Value("${inference.max-sample-tokens:4096}")
+    Integer maxSampleTokens;
+
+    private final GenerationEngine generationEngine;
+    private final InferenceScheduler inferenceScheduler;
+    private final PromptCache promptCache;
+    private final AdmissionController admissionController;
+    private final InferenceMetrics inferenceMetrics;
+    private final ChatSessionManager chatSessionManager;
+    private final ResponseCache responseCache;
+    private final LogitsMaskCache logitsMaskCache;
+
+    public ChatCompletionService(GenerationEngine generationEngine, InferenceScheduler inferenceScheduler, PromptCache promptCache,
+                                 AdmissionController admissionController, InferenceMetrics inferenceMetrics, ChatSessionManager chatSessionManager,
+                                 ResponseCache responseCache, LogitsMaskCache logitsMaskCache) {
+        this.generationEngine = generationEngine;
+        this.inferenceScheduler = inferenceScheduler;
+        this.promptCache = promptCache;
+        this.admissionController = admissionController;
+        this.inferenceMetrics = inferenceMetrics;
+        this.chatSessionManager = chatSessionManager;
+        this.responseCache = responseCache;
+        this.logitsMaskCache = logitsMaskCache;
     }
 
     @Bean
-    public RouterFunction<ServerResponse> detokenizeFunction() {
+    public RouterFunction<ServerResponse> chatCompletionsFunction() {
         return RouterFunctions.route(
-                RequestPredicates.POST("/v1/detokenize").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
-                serverRequest -> serverRequest.bodyToMono(List.class).flatMap(tokens -> {
-                    int[] arrays = tokens.stream().mapToInt((Object i) -> Integer.parseInt(i.toString())).toArray();
-                    String text = TokenDecoder.decodeToken(arrays);
-                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(text));
-                })
+                RequestPredicates.POST("/v1/chat/completions").and(RequestPredicates.accept(MediaType.TEXT_EVENT_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> chatCompletions(requestParams, false))
+        ).andRoute(
+                RequestPredicates.POST("/v1/chat/completions").and(RequestPredicates.accept(MediaType.APPLICATION_OCTET_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> chatCompletions(requestParams, true))
         );
     }
 
     @Bean
-    public RouterFunction<ServerResponse> embeddingFunction() {
+    public RouterFunction<ServerResponse> completionsFunction() {
         return RouterFunctions.route(
-                RequestPredicates.POST("/v1/embedding").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
-                serverRequest -> serverRequest.bodyToMono(String.class).flatMap(content -> {
-                    Model model = ModelBuilder.getInstance().getModel();
-                    if (!model.getModelParams().isEmbedding()) {
-                        return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue("Llama model must be created with embedding=True to call this method"));
-                    }
-                    float[] embedding = LlamaService.getEmbedding();
-                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(embedding));
-                })
+                RequestPredicates.POST("/v1/completions").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> completions(requestParams, false))
+        ).andRoute(
+                RequestPredicates.POST("/v1/completions").and(RequestPredicates.accept(MediaType.APPLICATION_OCTET_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> completions(requestParams, true))
         );
     }
 
@@ -126,11 +163,21 @@ public class ChatCompletionService {
                 RequestPredicates.POST("/v1/reset").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
                 serverRequest -> serverRequest.bodyToMono(ChatCompletionRequestParameter.class).flatMap(requestParams -> {
                     if ("ALL".equalsIgnoreCase(requestParams.getUser())) {
-                        ModelBuilder.getInstance().getModel().removeAllChatStatus();
+                        chatSessionManager.invalidateAll();
                     } else {
-                        ModelBuilder.getInstance().getModel().removeChatStatus(requestParams.getUser());
+                        chatSessionManager.invalidate(requestParams.getUser());
                     }
-                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue("Success"));
+                    //the chat status lives in the model context, only the generation lane may touch it
+                    return generationEngine.execute(() -> {
+                        ModelBuilder.getInstance().getResidentModel(getModelName(requestParams)).ifPresent(model -> {
+                            if ("ALL".equalsIgnoreCase(requestParams.getUser())) {
+                                model.removeAllChatStatus();
+                            } else {
+                                model.removeChatStatus(requestParams.getUser());
+                            }
+                        });
+                        return Boolean.TRUE;
+                    }).flatMap(done -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue("Success")));
                 })
         );
     }
@@ -147,76 +194,580 @@ public class ChatCompletionService {
         );
     }
 
-    private GenerateParameter getGenerateParameter(ChatCompletionRequestParameter params) {
+    @Bean
+    public RouterFunction<ServerResponse> statusFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.GET("/v1/status").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> {
+                    Map<String, Object> engine = Maps.newLinkedHashMap();
+                    engine.put("replicas", generationEngine.getReplicas());
+                    engine.put("active", generationEngine.getActive());
+                    engine.put("pending", generationEngine.getPending());
+                    engine.put("occupancy", generationEngine.getOccupancy());
+                    engine.put("avg_wait_ms", generationEngine.getAverageWaitTime());
+                    engine.put("max_wait_ms", generationEngine.getMaxWaitTime());
+                    Map<String, Object> data = Maps.newLinkedHashMap();
+                    data.put("engine", engine);
+                    data.put("admission", admissionController.getStatus());
+                    data.put("chat_sessions", chatSessionManager.getSize());
+                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(data));
+                }
+        );
+    }
+
+    private static String getModelName(ChatCompletionRequestParameter params) {
+        return StringUtils.defaultIfBlank(params.getModel(), ModelBuilder.DEFAULT_MODEL_NAME);
+    }
+
+    static GenerateParameter getGenerateParameter(ChatCompletionRequestParameter params) {
+        return getGenerateParameter(params, DEFAULT_PARAMETER, null, null, null, params.getUser());
+    }
+
+    //sampled choices (n > 1) run without a user, they neither continue nor replace the chat status of the user
+    private GenerateParameter getGenerateParameter(ChatCompletionRequestParameter params, LogprobsProcessor logprobsProcessor, CancellationCriteria cancellation) {
+        String user = getSamples(params) == 1 ? params.getUser() : null;
+        return getGenerateParameter(params, DEFAULT_PARAMETER, logitsMaskCache, logprobsProcessor, cancellation, user);
+    }
+
+    /**
+     * @param defaults        values of the sampling parameters missing in the request.
+     * @param logitsMaskCache grammars and logit biases shared between requests, or null to build them per request.
+     */
+    public static GenerateParameter getGenerateParameter(ChatCompletionRequestParameter params, GenerateParameter defaults, LogitsMaskCache logitsMaskCache) {
+        return getGenerateParameter(params, defaults, logitsMaskCache, null, null, params.getUser());
+    }
+
+    private static GenerateParameter getGenerateParameter(ChatCompletionRequestParameter params, GenerateParameter defaults, LogitsMaskCache logitsMaskCache,
+                                                          LogprobsProcessor logprobsProcessor, CancellationCriteria cancellation, String user) {
         long maxTime = TimeUnit.MINUTES.toMillis(Optional.ofNullable(params.getTimeout()).orElse(10L));
-        StoppingCriteriaList stopCriteriaList = new StoppingCriteriaList(Lists.newArrayList(new MaxTimeCriteria(maxTime)));
+        List<StoppingCriteria> stoppingCriteria = Lists.newArrayList(new MaxTimeCriteria(maxTime));
+        if (cancellation != null) {
+            stoppingCriteria.add(cancellation);
+        }
+        if (hasStopWords(params)) {
+            stoppingCriteria.add(new StopSequenceCriteria(params.getStopWords()));
+        }
+        TokenGrammar grammar = getGrammar(params, logitsMaskCache);
+        GrammarLogitsProcessor grammarProcessor = grammar == null ? null : new GrammarLogitsProcessor(grammar);
+        if (grammarProcessor != null) {
+            stoppingCriteria.add(grammarProcessor);
+        }
+        StoppingCriteriaList stopCriteriaList = new StoppingCriteriaList(stoppingCriteria);
 
-        LogitsProcessorList logitsProcessorList = null;
+        List<LogitsProcessor> logitsProcessors = Lists.newArrayList();
         if (params.getLogitBias() != null && !params.getLogitBias().isEmpty()) {
-            logitsProcessorList = new LogitsProcessorList(Lists.newArrayList(new CustomBiasLogitsProcessor(params.getLogitBias(), LlamaService.getVocabSize())));
+            logitsProcessors.add(logitsMaskCache == null ? new CustomBiasLogitsProcessor(params.getLogitBias(), LlamaService.getVocabSize())
+                    : logitsMaskCache.getBias(getModelName(params), params.getLogitBias()));
         }
+        //after the bias, a biased token is still masked out by the grammar
+        if (grammarProcessor != null) {
+            logitsProcessors.add(grammarProcessor);
+        }
+        //must be the last one to capture the final logits
+        if (logprobsProcessor != null) {
+            logitsProcessors.add(logprobsProcessor);
+        }
+        LogitsProcessorList logitsProcessorList = logitsProcessors.isEmpty() ? null : new LogitsProcessorList(logitsProcessors);
 
         return GenerateParameter.builder()
-                .temperature(Optional.ofNullable(params.getTemperature()).orElse(DEFAULT_PARAMETER.getTemperature()))
-                .topK(Optional.ofNullable(params.getTopK()).orElse(DEFAULT_PARAMETER.getTopK()))
-                .topP(Optional.ofNullable(params.getTopP()).orElse(DEFAULT_PARAMETER.getTopP()))
-                .minP(Optional.ofNullable(params.getMinP()).orElse(DEFAULT_PARAMETER.getMinP()))
-                .tsf(Optional.ofNullable(params.getTfs()).orElse(DEFAULT_PARAMETER.getTsf()))
-                .typical(Optional.ofNullable(params.getTypical()).orElse(DEFAULT_PARAMETER.getTypical()))
-                .maxNewTokenSize(Optional.ofNullable(params.getMaxNewTokensSize()).orElse(DEFAULT_PARAMETER.getMaxNewTokenSize()))
-                .frequencyPenalty(Optional.ofNullable(params.getFrequencyPenalty()).orElse(DEFAULT_PARAMETER.getFrequencyPenalty()))
-                .presencePenalty(Optional.ofNullable(params.getPresencePenalty()).orElse(DEFAULT_PARAMETER.getPresencePenalty()))
-                .repeatPenalty(Optional.ofNullable(params.getRepeatPenalty()).orElse(DEFAULT_PARAMETER.getRepeatPenalty()))
-                .mirostatMode(Optional.ofNullable(params.getMirostatMode()).orElse(DEFAULT_PARAMETER.getMirostatMode()))
-                .mirostatETA(Optional.ofNullable(params.getMirostatETA()).orElse(DEFAULT_PARAMETER.getMirostatETA()))
-                .mirostatTAU(Optional.ofNullable(params.getMirostatTAU()).orElse(DEFAULT_PARAMETER.getMirostatTAU()))
+                .temperature(Optional.ofNullable(params.getTemperature()).orElse(defaults.getTemperature()))
+                .topK(Optional.ofNullable(params.getTopK()).orElse(defaults.getTopK()))
+                .topP(Optional.ofNullable(params.getTopP()).orElse(defaults.getTopP()))
+                .minP(Optional.ofNullable(params.getMinP()).orElse(defaults.getMinP()))
+                .tsf(Optional.ofNullable(params.getTfs()).orElse(defaults.getTsf()))
+                .typical(Optional.ofNullable(params.getTypical()).orElse(defaults.getTypical()))
+                .maxNewTokenSize(Optional.ofNullable(params.getMaxNewTokensSize()).orElse(defaults.getMaxNewTokenSize()))
+                .frequencyPenalty(Optional.ofNullable(params.getFrequencyPenalty()).orElse(defaults.getFrequencyPenalty()))
+                .presencePenalty(Optional.ofNullable(params.getPresencePenalty()).orElse(defaults.getPresencePenalty()))
+                .repeatPenalty(Optional.ofNullable(params.getRepeatPenalty()).orElse(defaults.getRepeatPenalty()))
+                .penalizeNl(defaults.isPenalizeNl())
+                .mirostatMode(Optional.ofNullable(params.getMirostatMode()).orElse(defaults.getMirostatMode()))
+                .mirostatETA(Optional.ofNullable(params.getMirostatETA()).orElse(defaults.getMirostatETA()))
+                .mirostatTAU(Optional.ofNullable(params.getMirostatTAU()).orElse(defaults.getMirostatTAU()))
                 .stoppingCriteriaList(stopCriteriaList)
                 .logitsProcessorList(logitsProcessorList)
-                .verbosePrompt(params.isVerbose())
+                .verbosePrompt(params.isVerbose() || defaults.isVerbosePrompt())
+                .user(user)
                 .build();
     }
 
-    private Mono<ServerResponse> doCompletions(ChatCompletionRequestParameter requestParams, String system, String input, long startTime, boolean chat) {
-        String id = chat ? CommonUtils.randomString("octetchat") : CommonUtils.randomString("octetcmpl");
-        GenerateParameter generateParams = getGenerateParameter(requestParams);
-        Model model = ModelBuilder.getInstance().getModel();
+    /**
+     * @return number of prompt tokens.
+     */
+    private int checkPromptSize(Model model, String system, String input) {
+        int contextSize = model.getModelParams().getContextSize();
+        int promptTokens = promptCache.countTokens(model.getModelName(), system, input);
+        if (promptTokens >= contextSize) {
+            throw new ServerException(MessageFormat.format("Prompt is too long, tokens: {0}, context size: {1}", promptTokens, contextSize));
+        }
+        return promptTokens;
+    }
 
-        if (!requestParams.isStream()) {
-            CompletionResult result;
-            ChatCompletionData data;
-            if (chat) {
-                result = model.chatCompletions(generateParams, system, input);
-                data = new ChatCompletionData(ChatMessage.toAssistant(result.getContent()), result.getFinishReason().toString());
+    /**
+     * @return grammar the output must match, or null if the output is not constrained.
+     */
+    private static TokenGrammar getGrammar(ChatCompletionRequestParameter params, LogitsMaskCache logitsMaskCache) {
+        boolean hasSchema = params.getJsonSchema() != null && !params.getJsonSchema().isNull();
+        if (!hasSchema && StringUtils.isEmpty(params.getGrammar())) {
+            return null;
+        }
+        if (hasSchema && StringUtils.isNotEmpty(params.getGrammar())) {
+            throw new ServerException("Request parameters 'json_schema' and 'grammar' cannot be used together");
+        }
+        String grammar = hasSchema ? JsonSchemaGrammar.toGrammar(params.getJsonSchema()) : params.getGrammar();
+        if (logitsMaskCache == null) {
+            return new TokenGrammar(GrammarAutomaton.compile(grammar), Suppliers.memoize(TokenVocabulary::load));
+        }
+        return logitsMaskCache.getGrammar(getModelName(params), grammar);
+    }
+
+    private static boolean hasStopWords(ChatCompletionRequestParameter params) {
+        return params.getStopWords() != null && params.getStopWords().stream().anyMatch(StringUtils::isNotEmpty);
+    }
+
+    /**
+     * Sampled choices have no user (see getGenerateParameter), their turn is built from the full history and not stored.
+     */
+    private ChatSessionManager.ChatTurn prepareTurn(String modelName, Model model, GenerateParameter generateParams, String system,
+                                                   List<ChatSession.Message> history, String input) {
+        int contextSize = model.getModelParams().getContextSize();
+        int reserve = Math.min(Math.max(generateParams.getMaxNewTokenSize(), 0), contextSize / 2);
+        String user = generateParams.getUser();
+        long generation = ModelBuilder.getInstance().getLoadGeneration(modelName);
+        ChatSessionManager.ChatTurn turn = chatSessionManager.prepare(modelName, generation, user, system, history, input,
+                contextSize - reserve, ChatCompletionService::countTokens);
+        if (turn.isReset() && StringUtils.isNotBlank(user)) {
+            model.removeChatStatus(user);
+        }
+        return turn;
+    }
+
+    private static int countTokens(String text) {
+        return StringUtils.isEmpty(text) ? 0 : LlamaService.tokenize(text, false, true).length;
+    }
+
+    private static Iterable<Token> recordTurn(Iterable<Token> tokens, ChatSessionManager.ChatTurn turn, List<String> stopWords) {
+        return () -> new AbstractIterator<Token>() {
+            private final Iterator<Token> iterator = tokens.iterator();
+            private final StringBuilder reply = new StringBuilder();
+            private int replyTokens;
+
+            @Override
+            protected Token computeNext() {
+                if (iterator.hasNext()) {
+                    Token token = iterator.next();
+                    if (!token.getFinishReason().isFinished()) {
+                        reply.append(StringUtils.defaultString(token.getText()));
+                        replyTokens++;
+                    }
+                    return token;
+                }
+                turn.complete(StopSequenceMatcher.truncate(stopWords, reply.toString()), replyTokens);
+                return endOfData();
+            }
+        };
+    }
+
+    private static int getSamples(ChatCompletionRequestParameter params) {
+        return Optional.ofNullable(params.getN()).orElse(1);
+    }
+
+    //sampled choices are generated lazily one after another, each with its own stopping criteria
+    private static Iterable<Token> sample(int samples, IntFunction<Iterable<Token>> generator) {
+        if (samples == 1) {
+            return generator.apply(0);
+        }
+        return Iterables.concat(Iterables.transform(ContiguousSet.create(Range.closedOpen(0, samples), DiscreteDomain.integers()), generator::apply));
+    }
+
+    private Flux<Token> recordResponse(Flux<Token> tokens, HashCode cacheKey, String modelId, int samples, List<String> stopWords) {
+        List<Pair<String, String>> choices = Lists.newArrayListWithCapacity(samples);
+        StringBuilder content = new StringBuilder();
+        return tokens.doOnNext(token -> {
+            if (token.getFinishReason().isFinished()) {
+                choices.add(Pair.of(StopSequenceMatcher.truncate(stopWords, content.toString()), token.getFinishReason().toString()));
+                content.setLength(0);
+            } else {
+                content.append(StringUtils.defaultString(token.getText()));
+            }
+        }).doOnComplete(() -> {
+            if (choices.size() == samples) {
+                responseCache.complete(cacheKey, new ResponseCache.CachedResponse(modelId, choices));
             } else {
-                result = model.completions(generateParams, input);
-                data = new ChatCompletionData(result.getContent(), result.getFinishReason().toString());
+                responseCache.abandon(cacheKey);
+            }
+        }).doOnError(e -> responseCache.abandon(cacheKey)).doOnCancel(() -> responseCache.abandon(cacheKey));
+    }
+
+    private static Pair<String, String> collect(Iterable<Token> tokens, LogprobsProcessor logprobsProcessor, List<TokenLogprob> logprobs) {
+        StringBuilder content = new StringBuilder();
+        for (Token token : tokens) {
+            if (token.getFinishReason().isFinished()) {
+                return Pair.of(content.toString(), token.getFinishReason().toString());
+            }
+            content.append(StringUtils.defaultString(token.getText()));
+            logprobs.add(logprobsProcessor.resolve(token));
+        }
+        return Pair.of(content.toString(), FinishReason.FINISHED.toString());
+    }
+
+    private ChatCompletionData complete(Model model, ChatCompletionRequestParameter requestParams, GenerateParameter generateParams,
+                                        LogprobsProcessor logprobsProcessor, String system, String input, boolean chat) {
+        List<TokenLogprob> logprobs = logprobsProcessor == null ? null : Lists.newArrayList();
+        Pair<String, String> generated;
+        if (logprobs == null) {
+            CompletionResult result = chat ? model.chatCompletions(generateParams, system, input) : model.completions(generateParams, input);
+            generated = Pair.of(result.getContent(), result.getFinishReason().toString());
+        } else {
+            generated = collect(chat ? model.chat(generateParams, system, input) : model.generate(generateParams, input), logprobsProcessor, logprobs);
+        }
+        String content = StopSequenceMatcher.truncate(requestParams.getStopWords(), generated.getLeft());
+        ChatCompletionData data = chat ? new ChatCompletionData(ChatMessage.toAssistant(content), generated.getRight())
+                : new ChatCompletionData(content, generated.getRight());
+        if (logprobs != null) {
+            data.setLogprobs(new Logprobs(logprobs));
+        }
+        return data;
+    }
+
+    private void finishGenerate(SignalType signal, AdmissionController.Ticket ticket, GenerationRecorder recorder, GenerateParameter generateParams,
+                                CancellationCriteria cancellation, int samples) {
+        ticket.release();
+        if (signal == SignalType.CANCEL) {
+            cancellation.cancel();
+            //tokens left in the budget of the request that will not be decoded
+            int maxTokens = generateParams.getMaxNewTokenSize();
+            recorder.onCancel(maxTokens > 0 ? Math.max(0, maxTokens * samples - cancellation.getTokens()) : 0);
+        } else {
+            recorder.onComplete();
+        }
+    }
+
+    private void printMetrics(String modelName, String status, long startTime) {
+        log.info(MessageFormat.format("Generate {0}, elapsed time: {1} ms, prompt cache hit rate: {2}.", status,
+                (System.currentTimeMillis() - startTime), String.format("%.2f", promptCache.getStats().hitRate())));
+        ModelBuilder.getInstance().getResidentModel(modelName).ifPresent(Model::metrics);
+    }
+
+    /**
+     * @param binary stream {@link BinaryTokenEncoder} frames instead of SSE.
+     */
+    private Mono<ServerResponse> chatCompletions(ChatCompletionRequestParameter requestParams, boolean binary) {
+        long startTime = System.currentTimeMillis();
+        List<ChatMessage> messages = requestParams.getMessages();
+        if (messages == null || messages.isEmpty()) {
+            return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue("Request parameter 'messages' cannot be empty"));
+        }
+        String system = null;
+        List<ChatSession.Message> history = Lists.newArrayList();
+        for (ChatMessage message : messages) {
+            String role = String.valueOf(message.getRole());
+            if (ROLE_SYSTEM.equalsIgnoreCase(role)) {
+                if (!history.isEmpty()) {
+                    return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                            .body(BodyInserters.fromValue("Request parameter 'messages' only allows a system message at the beginning."));
+                }
+                system = StringUtils.isEmpty(system) ? message.getContent() : system + "\n" + message.getContent();
+            } else {
+                history.add(new ChatSession.Message(role, message.getContent(), 0));
+            }
+        }
+        if (history.isEmpty() || !ChatSessionManager.ROLE_USER.equalsIgnoreCase(history.get(history.size() - 1).getRole())) {
+            return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue("Request parameter 'messages' must end with a user message."));
+        }
+        String user = history.remove(history.size() - 1).getContent();
+        return doCompletions(requestParams, system, history, user, startTime, true, binary);
+    }
+
+    private Mono<ServerResponse> completions(ChatCompletionRequestParameter requestParams, boolean binary) {
+        long startTime = System.currentTimeMillis();
+        if (StringUtils.isBlank(requestParams.getPrompt())) {
+            return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue("Request parameter 'prompt' cannot be empty"));
+        }
+        return doCompletions(requestParams, null, null, requestParams.getPrompt(), startTime, false, binary);
+    }
+
+    private Mono<ServerResponse> doCompletions(ChatCompletionRequestParameter requestParams, String system, List<ChatSession.Message> history, String input,
+                                               long startTime, boolean chat, boolean binary) {
+        int samples = getSamples(requestParams);
+        if (samples < 1 || samples > MAX_SAMPLES) {
+            return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue(MessageFormat.format("Request parameter ''n'' must be between 1 and {0}.", MAX_SAMPLES)));
+        }
+        //the samples run one after another under one admission ticket
+        int maxTokens = Optional.ofNullable(requestParams.getMaxNewTokensSize()).orElse(DEFAULT_PARAMETER.getMaxNewTokenSize());
+        if (samples > 1 && (maxTokens <= 0 || (long) samples * maxTokens > maxSampleTokens)) {
+            return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue(MessageFormat.format("Request parameters ''n'' x ''max_tokens'' must not exceed {0} tokens.", maxSampleTokens)));
+        }
+        TokenGrammar grammar;
+        try {
+            //compiled and cached before admission, its masks are built once admitted
+            grammar = getGrammar(requestParams, logitsMaskCache);
+        } catch (ServerException e) {
+            return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(e.getMessage()));
+        }
+        String modelName = getModelName(requestParams);
+        String modelId = ModelBuilder.getInstance().getModelSetting(modelName).getModelName();
+
+        //cached responses are replayed as JSON or SSE only
+        HashCode cacheKey = binary ? null : getResponseCacheKey(requestParams, modelId, system, history, input, chat);
+        if (cacheKey != null) {
+            ResponseCache.CachedResponse cached = responseCache.get(cacheKey);
+            if (cached != null) {
+                return replay(requestParams, cached, chat);
+            }
+            Mono<ResponseCache.CachedResponse> leader = responseCache.join(cacheKey);
+            if (leader != null) {
+                //generate by itself if the leading request fails
+                return leader.flatMap(response -> replay(requestParams, response, chat))
+                        .switchIfEmpty(Mono.defer(() -> doAdmit(requestParams, modelName, modelId, grammar, system, history, input, startTime, chat, false, null)));
+            }
+            //the followers are released even if the response of the leader is discarded unwritten
+            Runnable abandoner = responseCache.abandoner(cacheKey);
+            return Mono.deferContextual(context -> {
+                context.<AdmissionController.Scope>getOrEmpty(AdmissionController.Scope.class).ifPresent(scope -> scope.onRelease(abandoner));
+                return doAdmit(requestParams, modelName, modelId, grammar, system, history, input, startTime, chat, binary, cacheKey);
+            });
+        }
+        return doAdmit(requestParams, modelName, modelId, grammar, system, history, input, startTime, chat, binary, cacheKey);
+    }
+
+    /**
+     * Builds the masks of the grammar on the inference scheduler, {@link #PRECOMPUTE_STATES} states per
+     * task so that no task holds the scheduler for the whole build. Runs on the ticket of the request,
+     * the model is loaded first if needed (the masks are over its vocabulary).
+     *
+     * @return empty once built, or the error of a grammar too complex to build.
+     */
+    private Mono<String> precompute(String modelName, String modelId, TokenGrammar grammar) {
+        if (grammar == null || grammar.isReady()) {
+            return Mono.empty();
+        }
+        Mono<?> loaded = ModelBuilder.getInstance().getResidentModel(modelId).isPresent() ? Mono.empty()
+                : generationEngine.execute(() -> ModelBuilder.getInstance().getModel(modelName));
+        return loaded.then(precompute(modelId, grammar));
+    }
+
+    private Mono<String> precompute(String modelId, TokenGrammar grammar) {
+        return inferenceScheduler.execute(() -> {
+            if (!ModelBuilder.getInstance().getResidentModel(modelId).isPresent()) {
+                throw new InferenceRejectedException(MessageFormat.format("Model {0} was unloaded by another request, please retry", modelId));
+            }
+            try {
+                grammar.precompute(PRECOMPUTE_STATES);
+                return Optional.<String>empty();
+            } catch (ServerException e) {
+                return Optional.of(e.getMessage());
             }
-            ChatCompletionChunk chunk = new ChatCompletionChunk(id, model.getModelName(), Lists.newArrayList(data));
+        }).flatMap(error -> error.isPresent() ? Mono.just(error.get()) : grammar.isReady() ? Mono.empty() : precompute(modelId, grammar));
+    }
 
+    private Mono<ServerResponse> doAdmit(ChatCompletionRequestParameter requestParams, String modelName, String modelId, TokenGrammar grammar, String system,
+                                         List<ChatSession.Message> history, String input, long startTime, boolean chat, boolean binary, HashCode cacheKey) {
+        return admissionController.acquire(modelId, requestParams.getUser()).flatMap(ticket -> {
+            inferenceMetrics.recordQueueWait(modelId, ticket.getWaitTime());
+            return precompute(modelName, modelId, grammar)
+                    .flatMap(error -> {
+                        ticket.release();
+                        abandon(cacheKey);
+                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(error));
+                    })
+                    .switchIfEmpty(Mono.defer(() -> doGenerate(requestParams, modelName, modelId, system, history, input, startTime, chat, binary, ticket, cacheKey)))
+                    .doOnError(e -> ticket.release());
+        }).doOnError(e -> abandon(cacheKey)).doOnCancel(() -> abandon(cacheKey))
+                .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+    }
+
+    static Mono<ServerResponse> tooManyRequests(TooManyRequestsException e) {
+        return ServerResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter()))
+                .contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(e.getMessage()));
+    }
+
+    private void abandon(HashCode cacheKey) {
+        if (cacheKey != null) {
+            responseCache.abandon(cacheKey);
+        }
+    }
+
+    private Mono<ServerResponse> replay(ChatCompletionRequestParameter requestParams, ResponseCache.CachedResponse cached, boolean chat) {
+        String id = chat ? CommonUtils.randomString("octetchat") : CommonUtils.randomString("octetcmpl");
+        List<Pair<String, String>> choices = cached.getChoices();
+        if (!requestParams.isStream()) {
+            List<ChatCompletionData> data = Lists.newArrayListWithCapacity(choices.size());
+            for (int i = 0; i < choices.size(); i++) {
+                Pair<String, String> choice = choices.get(i);
+                ChatCompletionData item = chat ? new ChatCompletionData(ChatMessage.toAssistant(choice.getLeft()), choice.getRight())
+                        : new ChatCompletionData(choice.getLeft(), choice.getRight());
+                item.setIndex(i);
+                data.add(item);
+            }
+            return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(new ChatCompletionChunk(id, cached.getModel(), data)));
+        }
+        List<ChatCompletionChunk> frames = Lists.newArrayList();
+        for (int i = 0; i < choices.size(); i++) {
+            Pair<String, String> choice = choices.get(i);
+            if (StringUtils.isNotEmpty(choice.getLeft())) {
+                frames.add(replayFrame(id, cached.getModel(), i, choice.getLeft(), FinishReason.NONE.name(), chat));
+            }
+            frames.add(replayFrame(id, cached.getModel(), i, "[DONE]", choice.getRight(), chat));
+        }
+        return ServerResponse.ok().contentType(MediaType.TEXT_EVENT_STREAM).body(Flux.fromIterable(frames), ChatCompletionChunk.class);
+    }
+
+    private static ChatCompletionChunk replayFrame(String id, String model, int index, String text, String finishReason, boolean chat) {
+        ChatCompletionData data = chat ? new ChatCompletionData("content", text, finishReason) : new ChatCompletionData(text, finishReason);
+        data.setIndex(index);
+        return new ChatCompletionChunk(id, model, Lists.newArrayList(data));
+    }
+
+    //only deterministic (greedy) requests without chat session state are cached
+    private HashCode getResponseCacheKey(ChatCompletionRequestParameter params, String modelId, String system, List<ChatSession.Message> history,
+                                         String input, boolean chat) {
+        float temperature = Optional.ofNullable(params.getTemperature()).orElse(DEFAULT_PARAMETER.getTemperature());
+        if (!responseCache.isEnabled() || temperature > 0 || params.getLogprobs() != null || (chat && StringUtils.isNotBlank(params.getUser()))) {
+            return null;
+        }
+        Hasher hasher = Hashing.sha256().newHasher();
+        putField(hasher, modelId);
+        putField(hasher, chat);
+        putField(hasher, system);
+        if (history != null) {
+            for (ChatSession.Message message : history) {
+                putField(hasher, message.getRole());
+                putField(hasher, message.getContent());
+            }
+        }
+        putField(hasher, input);
+        putField(hasher, Optional.ofNullable(params.getTopK()).orElse(DEFAULT_PARAMETER.getTopK()));
+        putField(hasher, Optional.ofNullable(params.getTopP()).orElse(DEFAULT_PARAMETER.getTopP()));
+        putField(hasher, Optional.ofNullable(params.getMinP()).orElse(DEFAULT_PARAMETER.getMinP()));
+        putField(hasher, Optional.ofNullable(params.getTfs()).orElse(DEFAULT_PARAMETER.getTsf()));
+        putField(hasher, Optional.ofNullable(params.getTypical()).orElse(DEFAULT_PARAMETER.getTypical()));
+        putField(hasher, Optional.ofNullable(params.getMaxNewTokensSize()).orElse(DEFAULT_PARAMETER.getMaxNewTokenSize()));
+        putField(hasher, Optional.ofNullable(params.getFrequencyPenalty()).orElse(DEFAULT_PARAMETER.getFrequencyPenalty()));
+        putField(hasher, Optional.ofNullable(params.getPresencePenalty()).orElse(DEFAULT_PARAMETER.getPresencePenalty()));
+        putField(hasher, Optional.ofNullable(params.getRepeatPenalty()).orElse(DEFAULT_PARAMETER.getRepeatPenalty()));
+        putField(hasher, Optional.ofNullable(params.getMirostatMode()).orElse(DEFAULT_PARAMETER.getMirostatMode()));
+        putField(hasher, Optional.ofNullable(params.getMirostatETA()).orElse(DEFAULT_PARAMETER.getMirostatETA()));
+        putField(hasher, Optional.ofNullable(params.getMirostatTAU()).orElse(DEFAULT_PARAMETER.getMirostatTAU()));
+        putField(hasher, getSamples(params));
+        putField(hasher, params.getStopWords());
+        putField(hasher, params.getLogitBias() == null ? null : new TreeMap<>(params.getLogitBias()));
+        putField(hasher, params.getJsonSchema());
+        putField(hasher, params.getGrammar());
+        return hasher.hash();
+    }
+
+    private static void putField(Hasher hasher, Object value) {
+        hasher.putString(String.valueOf(value), StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+
+    private Mono<ServerResponse> doGenerate(ChatCompletionRequestParameter requestParams, String modelName, String modelId, String system,
+                                            List<ChatSession.Message> history, String input, long startTime, boolean chat, boolean binary,
+                                            AdmissionController.Ticket ticket, HashCode cacheKey) {
+        String id = chat ? CommonUtils.randomString("octetchat") : CommonUtils.randomString("octetcmpl");
+        LogprobsProcessor logprobsProcessor = requestParams.getLogprobs() == null ? null : new LogprobsProcessor(requestParams.getLogprobs());
+        CancellationCriteria cancellation = new CancellationCriteria();
+        GenerateParameter generateParams = getGenerateParameter(requestParams, logprobsProcessor, cancellation);
+        int samples = getSamples(requestParams);
+        GenerationRecorder recorder = inferenceMetrics.start(modelId, chat ? "chat" : "completions");
+
+        if (!requestParams.isStream() && !binary) {
+            Mono<ChatCompletionChunk> completion = generationEngine.execute(() -> {
+                if (cancellation.isCancelled()) {
+                    return null;
+                }
+                Model model = ModelBuilder.getInstance().getModel(modelName);
+                String promptSystem = system;
+                String promptInput = input;
+                ChatSessionManager.ChatTurn turn = null;
+                if (chat) {
+                    turn = prepareTurn(modelName, model, generateParams, system, history, input);
+                    promptSystem = turn.getSystem();
+                    promptInput = turn.getInput();
+                }
+                recorder.onPrompt(checkPromptSize(model, promptSystem, promptInput));
+                List<ChatCompletionData> choices = Lists.newArrayListWithCapacity(samples);
+                for (int i = 0; i < samples && !cancellation.isCancelled(); i++) {
+                    GenerateParameter sampleParams = i == 0 ? generateParams : getGenerateParameter(requestParams, logprobsProcessor, cancellation);
+                    ChatCompletionData data = complete(model, requestParams, sampleParams, logprobsProcessor, promptSystem, promptInput, chat);
+                    data.setIndex(i);
+                    choices.add(data);
+                }
+                if (turn != null && samples == 1 && !cancellation.isCancelled()) {
+                    String content = choices.get(0).getMessage().getContent();
+                    turn.complete(content, countTokens(content));
+                }
+                return new ChatCompletionChunk(id, model.getModelName(), choices);
+            });
+
+            if (cacheKey != null) {
+                completion = completion.doOnSuccess(chunk -> responseCache.complete(cacheKey, new ResponseCache.CachedResponse(chunk.getModel(),
+                        chunk.getChoices().stream().map(data -> Pair.of(chat ? data.getMessage().getContent() : data.getText(), data.getFinishReason()))
+                                .collect(Collectors.toList()))))
+                        .doOnError(e -> responseCache.abandon(cacheKey))
+                        .doOnCancel(() -> responseCache.abandon(cacheKey));
+            }
             return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON)
-                    .body(Flux.just(chunk).doOnCancel(() -> {
-                        log.info(MessageFormat.format("Generate cancel, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                        model.metrics();
-                    }).doOnComplete(() -> {
-                        log.info(MessageFormat.format("Generate completed, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                        model.metrics();
-                    }), ChatCompletionChunk.class);
+                    .body(completion.doFinally(signal -> finishGenerate(signal, ticket, recorder, generateParams, cancellation, samples))
+                            .doOnCancel(() -> printMetrics(modelName, "cancel", startTime))
+                            .doOnSuccess(chunk -> printMetrics(modelName, "completed", startTime)), ChatCompletionChunk.class);
         } else {
             //streaming output
-            Iterable<Token> tokenIterable = chat ? model.chat(generateParams, system, input) : model.generate(generateParams, input);
-            return ServerResponse.ok().contentType(MediaType.TEXT_EVENT_STREAM)
-                    .body(Flux.fromIterable(tokenIterable).map(token -> {
-                        String text = token.getFinishReason().isFinished() ? "[DONE]" : token.getText();
-                        ChatCompletionData data = chat ? new ChatCompletionData("content", text, token.getFinishReason().name())
-                                : new ChatCompletionData(text, token.getFinishReason().name());
-                        return new ChatCompletionChunk(id, model.getModelName(), Lists.newArrayList(data));
-                    }).doOnCancel(() -> {
-                        log.info(MessageFormat.format("Generate cancel, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                        model.metrics();
-                    }).doOnComplete(() -> {
-                        log.info(MessageFormat.format("Generate completed, elapsed time: {0} ms.", (System.currentTimeMillis() - startTime)));
-                        model.metrics();
-                    }), ChatCompletionChunk.class);
+            Queue<TokenLogprob> logprobs = new ConcurrentLinkedQueue<>();
+            Flux<Token> stream = generationEngine.generate(() -> {
+                Model model = ModelBuilder.getInstance().getModel(modelName);
+                Iterable<Token> generated;
+                if (chat) {
+                    ChatSessionManager.ChatTurn turn = prepareTurn(modelName, model, generateParams, system, history, input);
+                    recorder.onPrompt(checkPromptSize(model, turn.getSystem(), turn.getInput()));
+                    if (samples == 1) {
+                        generated = recordTurn(model.chat(generateParams, turn.getSystem(), turn.getInput()), turn, requestParams.getStopWords());
+                    } else {
+                        generated = sample(samples, i -> model.chat(i == 0 ? generateParams : getGenerateParameter(requestParams, logprobsProcessor, cancellation),
+                                turn.getSystem(), turn.getInput()));
+                    }
+                } else {
+                    recorder.onPrompt(checkPromptSize(model, system, input));
+                    generated = sample(samples, i -> model.generate(i == 0 ? generateParams : getGenerateParameter(requestParams, logprobsProcessor, cancellation), input));
+                }
+                if (logprobsProcessor == null) {
+                    return generated;
+                }
+                //resolved on the decoder thread, right after the step captured by the processor
+                return Iterables.transform(generated, token -> {
+                    if (!token.getFinishReason().isFinished()) {
+                        logprobs.add(logprobsProcessor.resolve(token));
+                    }
+                    return token;
+                });
+            }).doOnNext(token -> recorder.onToken())
+                    .doFinally(signal -> finishGenerate(signal, ticket, recorder, generateParams, cancellation, samples))
+                    .doOnCancel(() -> printMetrics(modelName, "cancel", startTime))
+                    .doOnComplete(() -> printMetrics(modelName, "completed", startTime));
+            Flux<Token> tokens = cacheKey == null ? stream : recordResponse(stream, cacheKey, modelId, samples, requestParams.getStopWords());
+            Function<Token, String> text = hasStopWords(requestParams)
+                    ? new StopSequenceFilter(requestParams.getStopWords())
+                    : token -> token.getFinishReason().isFinished() ? null : token.getText();
+            Function<Token, TokenLogprob> logprob = logprobsProcessor == null ? null : token -> logprobs.poll();
+            TokenEncoder encoder = binary ? new BinaryTokenEncoder(text, logprob) : new SseChunkEncoder(id, modelId, chat, text, logprob);
+            BodyInserter<Flux<Token>, ServerHttpResponse> inserter = (response, context) -> {
+                DataBufferFactory bufferFactory = response.bufferFactory();
+                Flux<DataBuffer> frames = coalesceTokens > 1
+                        ? tokens.bufferTimeout(coalesceTokens, Duration.ofMillis(coalesceInterval)).map(batch -> encoder.encode(bufferFactory, batch))
+                        : tokens.map(token -> encoder.encode(bufferFactory, token));
+                return response.writeAndFlushWith(frames.doOnDiscard(DataBuffer.class, DataBufferUtils::release).map(Mono::just));
+            };
+            if (binary) {
+                return ServerResponse.ok().contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .header(HEADER_REQUEST_ID, id).header(HEADER_MODEL, modelId).body(inserter);
+            }
+            return ServerResponse.ok().contentType(MediaType.TEXT_EVENT_STREAM).body(inserter);
         }
     }
 
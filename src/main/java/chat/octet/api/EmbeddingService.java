@@ -0,0 +1,219 @@
+package chat.octet.api;
+
+import chat.octet.api.model.EmbeddingData;
+import chat.octet.api.model.EmbeddingRequestParameter;
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.EmbeddingCache;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.exceptions.ServerException;
+import chat.octet.exceptions.TooManyRequestsException;
+import chat.octet.metrics.InferenceMetrics;
+import chat.octet.model.LlamaService;
+import chat.octet.model.Model;
+import chat.octet.model.beans.Token;
+import chat.octet.model.parameters.GenerateParameter;
+import chat.octet.model.parameters.ModelParameter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedding endpoints. llama-java-core has no evaluate-only call: the first generation step
+ * evaluates the input and samples one token, the embedding is read right after it, before the
+ * sampled token is decoded, so each input costs one sampling on top of its evaluation.
+ */
+@Slf4j
+@Configuration
+public class EmbeddingService {
+
+    //a single generation step, see evaluate
+    private final static GenerateParameter EMBEDDING_PARAMETER = GenerateParameter.builder().maxNewTokenSize(1).build();
+    private final static String EMBEDDING_DISABLED = "Llama model must be created with embedding=True to call this method";
+
+    private final GenerationEngine generationEngine;
+    private final AdmissionController admissionController;
+    private final EmbeddingCache embeddingCache;
+    private final InferenceMetrics inferenceMetrics;
+
+    public EmbeddingService(GenerationEngine generationEngine, AdmissionController admissionController, EmbeddingCache embeddingCache,
+                            InferenceMetrics inferenceMetrics) {
+        this.generationEngine = generationEngine;
+        this.admissionController = admissionController;
+        this.embeddingCache = embeddingCache;
+        this.inferenceMetrics = inferenceMetrics;
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> embeddingFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/embedding").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(String.class).flatMap(content -> {
+                    long startNanos = System.nanoTime();
+                    ModelParameter modelParams = ModelBuilder.getInstance().getModelSetting(serverRequest.queryParam("model").orElse(ModelBuilder.DEFAULT_MODEL_NAME));
+                    if (!modelParams.isEmbedding()) {
+                        return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(EMBEDDING_DISABLED));
+                    }
+                    return embed(modelParams, Collections.singletonList(content), null)
+                            .doOnSuccess(result -> inferenceMetrics.recordLatency("embedding", startNanos))
+                            .flatMap(embeddings -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(embeddings.get(0))))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        );
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> embeddingsFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/embeddings").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(EmbeddingRequestParameter.class).flatMap(requestParams -> {
+                    long startNanos = System.nanoTime();
+                    List<String> input = requestParams.getInput();
+                    if (input == null || input.isEmpty()) {
+                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                                .body(BodyInserters.fromValue("Request parameter 'input' cannot be empty"));
+                    }
+                    ModelParameter modelParams = ModelBuilder.getInstance().getModelSetting(StringUtils.defaultIfBlank(requestParams.getModel(), ModelBuilder.DEFAULT_MODEL_NAME));
+                    if (!modelParams.isEmbedding()) {
+                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(EMBEDDING_DISABLED));
+                    }
+                    boolean base64 = "base64".equalsIgnoreCase(requestParams.getEncodingFormat());
+                    return embed(modelParams, input, requestParams.getUser()).doOnSuccess(result -> inferenceMetrics.recordLatency("embeddings", startNanos)).flatMap(embeddings -> {
+                        List<EmbeddingData> list = Lists.newArrayListWithCapacity(embeddings.size());
+                        for (int i = 0; i < embeddings.size(); i++) {
+                            list.add(new EmbeddingData(i, base64 ? encodeBase64(embeddings.get(i)) : embeddings.get(i)));
+                        }
+                        Map<String, Object> data = Maps.newLinkedHashMap();
+                        data.put("model", modelParams.getModelName());
+                        data.put("data", list);
+                        return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(data));
+                    }).onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        ).andRoute(
+                RequestPredicates.POST("/v1/embeddings").and(RequestPredicates.accept(MediaType.APPLICATION_OCTET_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(EmbeddingRequestParameter.class).flatMap(requestParams -> {
+                    long startNanos = System.nanoTime();
+                    List<String> input = requestParams.getInput();
+                    if (input == null || input.isEmpty()) {
+                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                                .body(BodyInserters.fromValue("Request parameter 'input' cannot be empty"));
+                    }
+                    ModelParameter modelParams = ModelBuilder.getInstance().getModelSetting(StringUtils.defaultIfBlank(requestParams.getModel(), ModelBuilder.DEFAULT_MODEL_NAME));
+                    if (!modelParams.isEmbedding()) {
+                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(EMBEDDING_DISABLED));
+                    }
+                    return embed(modelParams, input, requestParams.getUser()).doOnSuccess(result -> inferenceMetrics.recordLatency("embeddings", startNanos))
+                            .flatMap(embeddings -> ServerResponse.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(BodyInserters.fromValue(toBytes(embeddings))))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        );
+    }
+
+    private Mono<List<float[]>> embed(ModelParameter modelParams, List<String> input, String user) {
+        String modelName = modelParams.getModelName();
+        float[][] embeddings = new float[input.size()][];
+        Map<String, List<Integer>> missing = Maps.newLinkedHashMap();
+        for (int i = 0; i < input.size(); i++) {
+            String text = StringUtils.defaultString(input.get(i));
+            embeddings[i] = embeddingCache.get(modelName, text);
+            if (embeddings[i] == null) {
+                missing.computeIfAbsent(text, key -> Lists.newArrayList()).add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Mono.just(Arrays.asList(embeddings));
+        }
+        //the evaluations run on the generation lane, admitted on the embedding queue of the model
+        return Mono.usingWhen(admissionController.acquireEmbedding(modelName, user), ticket -> {
+            inferenceMetrics.recordQueueWait(AdmissionController.getEmbeddingQueue(modelName), ticket.getWaitTime());
+            return generationEngine.execute(() -> toBatches(modelParams, Lists.newArrayList(missing.keySet())))
+                    .flatMapMany(Flux::fromIterable)
+                    .concatMap(batch -> generationEngine.execute(() -> evaluate(modelName, batch)))
+                    .doOnNext(results -> results.forEach((text, embedding) -> {
+                        embeddingCache.put(modelName, text, embedding);
+                        missing.get(text).forEach(index -> embeddings[index] = embedding);
+                    }))
+                    .then(Mono.fromCallable(() -> Arrays.asList(embeddings)));
+        }, ticket -> Mono.fromRunnable(ticket::release));
+    }
+
+    private List<List<String>> toBatches(ModelParameter modelParams, List<String> texts) {
+        //make sure the tokenizer of this model is loaded
+        ModelBuilder.getInstance().getModel(modelParams.getModelName());
+        int batchSize = Math.max(1, modelParams.getBatchSize());
+        List<List<String>> batches = Lists.newArrayList();
+        List<String> batch = Lists.newArrayList();
+        int batchTokens = 0;
+        for (String text : texts) {
+            int tokens = LlamaService.tokenize(text, false, true).length;
+            if (tokens >= modelParams.getContextSize()) {
+                throw new ServerException(MessageFormat.format("Embedding input is too long, tokens: {0}, context size: {1}", tokens, modelParams.getContextSize()));
+            }
+            if (!batch.isEmpty() && batchTokens + tokens > batchSize) {
+                batches.add(batch);
+                batch = Lists.newArrayList();
+                batchTokens = 0;
+            }
+            batch.add(text);
+            batchTokens += tokens;
+        }
+        batches.add(batch);
+        return batches;
+    }
+
+    private Map<String, float[]> evaluate(String modelName, List<String> batch) {
+        Model model = ModelBuilder.getInstance().getModel(modelName);
+        Map<String, float[]> results = Maps.newLinkedHashMap();
+        for (String text : batch) {
+            //the first step evaluates the input, the sampled token is never decoded
+            Iterator<Token> generation = model.generate(EMBEDDING_PARAMETER, text).iterator();
+            if (generation.hasNext()) {
+                generation.next();
+            }
+            results.put(text, LlamaService.getEmbedding());
+        }
+        return results;
+    }
+
+    /**
+     * Little-endian int32 count and dimension, followed by the float32 values of each embedding.
+     */
+    private static byte[] toBytes(List<float[]> embeddings) {
+        int dimension = embeddings.get(0).length;
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + embeddings.size() * dimension * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(embeddings.size()).putInt(dimension);
+        for (float[] embedding : embeddings) {
+            for (float value : embedding) {
+                buffer.putFloat(value);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static String encodeBase64(float[] embedding) {
+        ByteBuffer buffer = ByteBuffer.allocate(embedding.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(embedding);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+}
@@ -1,10 +1,16 @@
 package chat.octet.api;
 
+import chat.octet.api.model.ServingParameter;
+import chat.octet.exceptions.ModelNotFoundException;
 import chat.octet.exceptions.ServerException;
 import chat.octet.model.Model;
 import chat.octet.model.parameters.ModelParameter;
-import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
@@ -12,8 +18,27 @@ import org.apache.commons.lang3.tuple.Pair;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.MessageFormat;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -21,8 +46,25 @@ public final class ModelBuilder implements AutoCloseable {
 
     public static final String DEFAULT_MODEL_NAME = "Llama2-chat";
     public static final String MODEL_SETTINGS;
-    private static volatile Model model;
+    private static final long SETTINGS_RELOAD_DELAY = 200L;
+    //llama-java-core binds a single native model and context per process
+    private static final int MAX_NATIVE_MODELS = 1;
+    //guarded by ModelBuilder.class, held for the bookkeeping only, never across a native load or close
+    private static final LinkedHashMap<String, Resident> MODELS = new LinkedHashMap<>(4, 0.75f, true);
+    //loads in progress by model name, concurrent callers wait for the same load
+    private static final Map<String, CompletableFuture<Model>> LOADING = new ConcurrentHashMap<>();
+    private static final AtomicLong LOADS = new AtomicLong();
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private static volatile long memoryBudget = 0L;
+    private static volatile int maxResidentModels = MAX_NATIVE_MODELS;
+    private static volatile ModelListener listener = new ModelListener() {
+    };
     private static volatile ModelBuilder builder;
+    //copy of MODELS by lower case name, read without locking
+    private static volatile Map<String, Resident> residents = Collections.emptyMap();
+    //parsed once, replaced by the settings watcher
+    private static volatile Settings settings;
+    private static Thread settingsWatcher;
 
     static {
         MODEL_SETTINGS = StringUtils.join(Paths.get("").toAbsolutePath().toString(), File.separator, "conf", File.separator, "setting.json");
@@ -42,30 +84,203 @@ public final class ModelBuilder implements AutoCloseable {
         return builder;
     }
 
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = Math.max(0L, bytes);
+    }
+
+    public void setMaxResidentModels(int count) {
+        if (count > MAX_NATIVE_MODELS) {
+            log.warn(MessageFormat.format("Max resident models {0} is not supported, llama-java-core binds a single native model, use {1}.", count, MAX_NATIVE_MODELS));
+        }
+        maxResidentModels = Math.max(1, Math.min(count, MAX_NATIVE_MODELS));
+    }
+
+    public void setListener(ModelListener modelListener) {
+        listener = modelListener;
+    }
+
+    /**
+     * Loads the model if it is not resident, first evicting the least recently used models over the
+     * resident count or the memory budget. The server calls it on the generation lane only, so the
+     * evicted models have no generation in flight.
+     */
     public Model getModel(String name) {
-        if (model == null) {
-            synchronized (ModelBuilder.class) {
-                if (model == null) {
-                    ModelParameter modelParams = getModelSetting(name);
-                    model = new Model(modelParams);
-                }
+        ModelParameter modelParams = getModelSetting(name);
+        String key = modelParams.getModelName();
+        synchronized (ModelBuilder.class) {
+            //touch the model, MODELS is in access order
+            Resident resident = MODELS.get(key);
+            if (resident != null) {
+                return resident.model;
             }
         }
+        CompletableFuture<Model> load = new CompletableFuture<>();
+        CompletableFuture<Model> inProgress = LOADING.putIfAbsent(key, load);
+        if (inProgress != null) {
+            try {
+                return inProgress.join();
+            } catch (CompletionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new ServerException(MessageFormat.format("Load model {0} error", key), e.getCause());
+            }
+        }
+        List<String> evicted = Lists.newArrayList();
+        try {
+            Model model = listener.exclusive(() -> load(modelParams, evicted));
+            load.complete(model);
+            return model;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            LOADING.remove(key, load);
+            evicted.forEach(listener::released);
+        }
+    }
+
+    private Model load(ModelParameter modelParams, List<String> evicted) {
+        String key = modelParams.getModelName();
+        List<Model> closed = Lists.newArrayList();
+        synchronized (ModelBuilder.class) {
+            Resident resident = MODELS.get(key);
+            if (resident != null) {
+                return resident.model;
+            }
+            long modelSize = getModelSize(modelParams);
+            if (memoryBudget > 0 && modelSize > memoryBudget) {
+                throw new ServerException(MessageFormat.format("Model {0} ({1} bytes) exceeds the model memory budget ({2} bytes)", key, modelSize, memoryBudget));
+            }
+            evict(modelSize).forEach((name, model) -> {
+                evicted.add(name);
+                closed.add(model);
+            });
+            publish();
+        }
+        closed.forEach(Model::close);
+        long startTime = System.currentTimeMillis();
+        Model model = new Model(modelParams);
+        synchronized (ModelBuilder.class) {
+            MODELS.put(key, new Resident(model, LOADS.incrementAndGet()));
+            publish();
+        }
+        log.info(MessageFormat.format("Model {0} loaded, elapsed time: {1} ms.", key, (System.currentTimeMillis() - startTime)));
         return model;
     }
 
+    //called with the ModelBuilder.class monitor held
+    private static void publish() {
+        Map<String, Resident> snapshot = Maps.newHashMap();
+        MODELS.forEach((key, resident) -> snapshot.put(key.toLowerCase(Locale.ROOT), resident));
+        residents = Collections.unmodifiableMap(snapshot);
+    }
+
     public Model getModel() {
         return getModel(DEFAULT_MODEL_NAME);
     }
 
+    public Optional<Model> getResidentModel(String name) {
+        return Optional.ofNullable(residents.get(name.toLowerCase(Locale.ROOT))).map(resident -> resident.model);
+    }
+
+    /**
+     * @return load generation of the resident model, 0 if the model is not resident.
+     */
+    public long getLoadGeneration(String name) {
+        Resident resident = residents.get(name.toLowerCase(Locale.ROOT));
+        return resident != null ? resident.generation : 0L;
+    }
+
+    public List<Model> getResidentModels() {
+        return residents.values().stream().map(resident -> resident.model).collect(Collectors.toList());
+    }
+
     public Model reloadModel(String name) {
+        return listener.exclusive(() -> {
+            unloadModel(name);
+            return getModel(name);
+        });
+    }
+
+    public void unloadModel(String name) {
+        Optional<String> unloaded = listener.exclusive(() -> {
+            Optional<Model> model;
+            synchronized (ModelBuilder.class) {
+                model = getResidentModel(name);
+                model.ifPresent(value -> {
+                    MODELS.remove(value.getModelParams().getModelName());
+                    publish();
+                });
+            }
+            model.ifPresent(Model::close);
+            return model.map(value -> value.getModelParams().getModelName());
+        });
+        unloaded.ifPresent(listener::released);
+    }
+
+    /**
+     * Watches the model settings file, changes are parsed once and the names of resident models
+     * whose settings changed are passed to the listener.
+     */
+    public void watchSettings(Consumer<String> listener) {
         synchronized (ModelBuilder.class) {
-            if (model != null) {
-                model.close();
-                model = null;
+            if (settingsWatcher != null) {
+                return;
+            }
+            Path file = Paths.get(MODEL_SETTINGS);
+            WatchService watchService;
+            try {
+                watchService = file.getFileSystem().newWatchService();
+                file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                throw new ServerException("Unable to watch model configuration file", e);
             }
+            settingsWatcher = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        WatchKey key = watchService.take();
+                        boolean changed = key.pollEvents().stream().anyMatch(event -> file.getFileName().equals(event.context()));
+                        key.reset();
+                        if (changed) {
+                            //let the writer finish before parsing
+                            Thread.sleep(SETTINGS_RELOAD_DELAY);
+                            refreshSettings(listener);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        log.warn("Reload model configuration file error, keep the previous settings.", e);
+                    }
+                }
+            }, "settings-watcher");
+            settingsWatcher.setDaemon(true);
+            settingsWatcher.start();
         }
-        return getModel(name);
+    }
+
+    private void refreshSettings(Consumer<String> listener) {
+        Settings previous = settings;
+        Settings current = readSettings();
+        settings = current;
+        log.info("Model configuration file reloaded.");
+        if (previous == null) {
+            return;
+        }
+        for (Model model : getResidentModels()) {
+            String key = model.getModelParams().getModelName().toLowerCase(Locale.ROOT);
+            if (!Objects.equals(previous.nodes.get(key), current.nodes.get(key))) {
+                listener.accept(model.getModelParams().getModelName());
+            }
+        }
+    }
+
+    public ServingParameter getServingSetting(String name) {
+        List<ServingParameter> servingParameters = getSettings().serving;
+        for (ServingParameter parameter : servingParameters) {
+            if (name.equalsIgnoreCase(parameter.getModelName())) {
+                return parameter;
+            }
+        }
+        throw new ModelNotFoundException("Unable to find model settings, name: " + name);
     }
 
     public List<Pair<String, String>> getModelsList() {
@@ -78,35 +293,133 @@ public final class ModelBuilder implements AutoCloseable {
         return modelParameters.stream().map(ModelParameter::getModelName).collect(Collectors.toList());
     }
 
-    private ModelParameter getModelSetting(String name) {
+    public ModelParameter getModelSetting(String name) {
         List<ModelParameter> modelParameters = getModelSettings();
         for (ModelParameter parameter : modelParameters) {
             if (name.equalsIgnoreCase(parameter.getModelName())) {
                 return parameter;
             }
         }
-        throw new ServerException("Unable to find model settings, name: " + name);
+        throw new ModelNotFoundException("Unable to find model settings, name: " + name);
+    }
+
+    /**
+     * Removes the least recently used models from the pool, the caller closes them.
+     *
+     * @return evicted models by name.
+     */
+    private Map<String, Model> evict(long requiredSize) {
+        Map<String, Long> sizes = Maps.newHashMap();
+        long residentSize = 0L;
+        for (Map.Entry<String, Resident> entry : MODELS.entrySet()) {
+            long size = getModelSize(entry.getValue().model.getModelParams());
+            sizes.put(entry.getKey(), size);
+            residentSize += size;
+        }
+        Map<String, Model> evicted = Maps.newLinkedHashMap();
+        Iterator<Map.Entry<String, Resident>> iterator = MODELS.entrySet().iterator();
+        while (iterator.hasNext() && (MODELS.size() >= maxResidentModels || (memoryBudget > 0 && residentSize + requiredSize > memoryBudget))) {
+            Map.Entry<String, Resident> eldest = iterator.next();
+            iterator.remove();
+            residentSize -= sizes.get(eldest.getKey());
+            evicted.put(eldest.getKey(), eldest.getValue().model);
+            log.info(MessageFormat.format("Model {0} evicted from the model pool.", eldest.getKey()));
+        }
+        return evicted;
+    }
+
+    private long getModelSize(ModelParameter modelParams) {
+        return new File(modelParams.getModelPath()).length();
     }
 
     private List<ModelParameter> getModelSettings() {
+        return getSettings().models;
+    }
+
+    private Settings getSettings() {
+        Settings current = settings;
+        if (current == null) {
+            synchronized (ModelBuilder.class) {
+                if (settings == null) {
+                    settings = readSettings();
+                }
+                current = settings;
+            }
+        }
+        return current;
+    }
+
+    private Settings readSettings() {
         File file = new File(MODEL_SETTINGS);
         if (!file.isFile() || !file.exists()) {
             throw new ServerException("Can not read model configuration file, please make sure it is valid");
         }
         try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
-            ObjectMapper mapper = new ObjectMapper();
-            JavaType javaType = mapper.getTypeFactory().constructParametricType(List.class, ModelParameter.class);
             String json = bufferedReader.lines().collect(Collectors.joining());
-            return mapper.readValue(json, javaType);
+            return new Settings(MAPPER.readTree(json));
         } catch (Exception e) {
             throw new ServerException("Parse model configuration file error", e);
         }
     }
 
+    /**
+     * A loaded model and its load generation, the native chat status lives as long as a load.
+     */
+    private static final class Resident {
+
+        private final Model model;
+        private final long generation;
+
+        private Resident(Model model, long generation) {
+            this.model = model;
+            this.generation = generation;
+        }
+    }
+
+    private static final class Settings {
+
+        //raw settings by lower case model name, to detect changed models
+        private final Map<String, JsonNode> nodes = Maps.newHashMap();
+        private final List<ModelParameter> models;
+        private final List<ServingParameter> serving;
+
+        private Settings(JsonNode root) {
+            this.models = MAPPER.convertValue(root, MAPPER.getTypeFactory().constructCollectionType(List.class, ModelParameter.class));
+            this.serving = MAPPER.convertValue(root, MAPPER.getTypeFactory().constructCollectionType(List.class, ServingParameter.class));
+            root.forEach(node -> nodes.put(node.path("modelName").asText().toLowerCase(Locale.ROOT), node));
+        }
+    }
+
+    /**
+     * Hooks of the model loads and unloads.
+     */
+    public interface ModelListener {
+
+        /**
+         * Runs a native model load or unload, no other thread may call into the model meanwhile.
+         */
+        default <T> T exclusive(Supplier<T> task) {
+            return task.get();
+        }
+
+        /**
+         * The model was unloaded, results computed with its weights must be dropped.
+         */
+        default void released(String name) {
+        }
+    }
+
     @Override
     public void close() {
-        if (model != null) {
-            model.close();
-        }
+        listener.exclusive(() -> {
+            List<Model> models;
+            synchronized (ModelBuilder.class) {
+                models = MODELS.values().stream().map(resident -> resident.model).collect(Collectors.toList());
+                MODELS.clear();
+                publish();
+            }
+            models.forEach(Model::close);
+            return Boolean.TRUE;
+        });
     }
 }
@@ -0,0 +1,128 @@
+package chat.octet.api;
+
+import chat.octet.config.StartupConfig;
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.ChatSessionManager;
+import chat.octet.engine.EmbeddingCache;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.InferenceScheduler;
+import chat.octet.engine.LogitsMaskCache;
+import chat.octet.engine.PromptCache;
+import chat.octet.engine.ResponseCache;
+import chat.octet.metrics.InferenceMetrics;
+import com.google.common.collect.Maps;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.text.MessageFormat;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Hot swaps a model without failing requests. The admission of the model is paused and the requests
+ * in flight on the old weights drain, then the swap runs as a task of the generation engine and the
+ * queued requests are admitted on the new weights. Every model load and unload (reloads and pool
+ * evictions) pauses the inference scheduler and drops the results computed with the old weights.
+ */
+@Slf4j
+@Configuration
+public class ModelReloadService {
+
+    @Value("${model.watch-settings:true}")
+    Boolean watchSettings;
+
+    private final GenerationEngine generationEngine;
+    private final InferenceScheduler inferenceScheduler;
+    private final AdmissionController admissionController;
+    private final StartupConfig startupConfig;
+    private final PromptCache promptCache;
+    private final EmbeddingCache embeddingCache;
+    private final ResponseCache responseCache;
+    private final LogitsMaskCache logitsMaskCache;
+    private final ChatSessionManager chatSessionManager;
+    private final InferenceMetrics inferenceMetrics;
+
+    public ModelReloadService(GenerationEngine generationEngine, InferenceScheduler inferenceScheduler, AdmissionController admissionController,
+                              StartupConfig startupConfig, PromptCache promptCache, EmbeddingCache embeddingCache, ResponseCache responseCache, LogitsMaskCache logitsMaskCache, ChatSessionManager chatSessionManager,
+                              InferenceMetrics inferenceMetrics) {
+        this.generationEngine = generationEngine;
+        this.inferenceScheduler = inferenceScheduler;
+        this.admissionController = admissionController;
+        this.startupConfig = startupConfig;
+        this.promptCache = promptCache;
+        this.embeddingCache = embeddingCache;
+        this.responseCache = responseCache;
+        this.logitsMaskCache = logitsMaskCache;
+        this.chatSessionManager = chatSessionManager;
+        this.inferenceMetrics = inferenceMetrics;
+    }
+
+    @PostConstruct
+    public void init() {
+        ModelBuilder.getInstance().setListener(new ModelBuilder.ModelListener() {
+            @Override
+            public <T> T exclusive(Supplier<T> task) {
+                return inferenceScheduler.exclusive(task);
+            }
+
+            @Override
+            public void released(String name) {
+                //results of the old weights
+                promptCache.clear();
+                embeddingCache.clear();
+                responseCache.clear();
+                logitsMaskCache.clear();
+                chatSessionManager.detach(name);
+            }
+        });
+        if (watchSettings) {
+            ModelBuilder.getInstance().watchSettings(name -> reload(name).subscribe(
+                    elapsed -> log.info(MessageFormat.format("Model {0} settings changed, reloaded in {1} ms.", name, elapsed)),
+                    e -> log.error(MessageFormat.format("Reload model {0} error.", name), e)
+            ));
+        }
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> reloadFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/models/{model}/reload").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> {
+                    String name = serverRequest.pathVariable("model");
+                    return reload(name).flatMap(elapsed -> {
+                        Map<String, Object> data = Maps.newHashMap();
+                        data.put("model", name);
+                        data.put("elapsed", elapsed);
+                        return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(data));
+                    });
+                }
+        );
+    }
+
+    /**
+     * Fails with {@link chat.octet.exceptions.ModelNotFoundException} (404) if the model has no settings, before anything is paused.
+     */
+    public Mono<Long> reload(String name) {
+        return Mono.defer(() -> {
+            String model = ModelBuilder.getInstance().getModelSetting(name).getModelName();
+            long startTime = System.currentTimeMillis();
+            return admissionController.exclusive(model, generationEngine.execute(() -> {
+                //a single native context: the old weights are released before the new ones are mapped
+                ModelBuilder.getInstance().unloadModel(name);
+                startupConfig.warmup(name, promptCache, inferenceMetrics);
+                return System.currentTimeMillis() - startTime;
+            }));
+        });
+    }
+
+}
@@ -0,0 +1,197 @@
+package chat.octet.api;
+
+import chat.octet.api.model.TokenLogprob;
+import chat.octet.model.beans.Token;
+import chat.octet.model.enums.FinishReason;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Writes SSE frames with the same JSON layout as {@link chat.octet.api.model.ChatCompletionChunk},
+ * the constant envelope (id, model, created) is rendered once per request and only the token
+ * delta is escaped into the buffer of each frame.
+ */
+public final class SseChunkEncoder implements TokenEncoder {
+
+    private static final String DONE = "[DONE]";
+    private static final byte[] FRAME_END = "\"}]}\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LOGPROBS_START = "\",\"logprobs\":{\"content\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LOGPROBS_END = "]}}]}\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String envelope;
+    private final String content;
+    private final byte[] separator;
+    //choice of the current frames, sampled choices are streamed one after another
+    private int index;
+    private byte[] prefix;
+    private final Function<Token, String> text;
+    private final Function<Token, TokenLogprob> logprobs;
+    private final StringBuilder escaped = new StringBuilder(64);
+    private final StringBuilder logprobsContent = new StringBuilder();
+
+    public SseChunkEncoder(String id, String model, boolean chat) {
+        this(id, model, chat, token -> token.getFinishReason().isFinished() ? null : token.getText());
+    }
+
+    /**
+     * @param text text sent for a token, for the finished token only the text held back so far.
+     */
+    public SseChunkEncoder(String id, String model, boolean chat, Function<Token, String> text) {
+        this(id, model, chat, text, null);
+    }
+
+    /**
+     * @param logprobs log-probabilities of a token, or null to leave them out of the frames.
+     */
+    public SseChunkEncoder(String id, String model, boolean chat, Function<Token, String> text, Function<Token, TokenLogprob> logprobs) {
+        this.text = text;
+        this.logprobs = logprobs;
+        StringBuilder builder = new StringBuilder(128).append("data:{\"id\":\"");
+        escape(id, builder);
+        builder.append("\",\"model\":\"");
+        escape(model, builder);
+        builder.append("\",\"created\":").append(System.currentTimeMillis()).append(",\"choices\":[{\"index\":");
+        this.envelope = builder.toString();
+        this.content = chat ? ",\"delta\":{\"content\":\"" : ",\"text\":\"";
+        this.prefix = (envelope + index + content).getBytes(StandardCharsets.UTF_8);
+        this.separator = (chat ? "\"},\"finish_reason\":\"" : "\",\"finish_reason\":\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public DataBuffer encode(DataBufferFactory bufferFactory, Token token) {
+        DataBuffer buffer = bufferFactory.allocateBuffer(prefix.length + separator.length + FRAME_END.length + 64);
+        writeToken(buffer, token);
+        return buffer;
+    }
+
+    @Override
+    public DataBuffer encode(DataBufferFactory bufferFactory, List<Token> tokens) {
+        if (tokens.size() == 1) {
+            return encode(bufferFactory, tokens.get(0));
+        }
+        DataBuffer buffer = bufferFactory.allocateBuffer(prefix.length + separator.length + FRAME_END.length + tokens.size() * 8);
+        escaped.setLength(0);
+        Token last = null;
+        for (Token token : tokens) {
+            if (token.getFinishReason().isFinished()) {
+                flushText(buffer, last);
+                writeToken(buffer, token);
+                escaped.setLength(0);
+                last = null;
+                continue;
+            }
+            escape(text.apply(token), escaped);
+            appendLogprobs(token);
+            last = token;
+        }
+        flushText(buffer, last);
+        return buffer;
+    }
+
+    private void flushText(DataBuffer buffer, Token last) {
+        if (last != null) {
+            writeFrame(buffer, last.getFinishReason().name());
+        }
+    }
+
+    private void writeToken(DataBuffer buffer, Token token) {
+        escaped.setLength(0);
+        if (!token.getFinishReason().isFinished()) {
+            escape(text.apply(token), escaped);
+            appendLogprobs(token);
+            writeFrame(buffer, token.getFinishReason().name());
+            return;
+        }
+        //text held back until the end of the generation
+        String rest = text.apply(token);
+        if (rest != null && !rest.isEmpty()) {
+            escape(rest, escaped);
+            writeFrame(buffer, FinishReason.NONE.name());
+            escaped.setLength(0);
+        }
+        escape(DONE, escaped);
+        writeFrame(buffer, token.getFinishReason().name());
+        index++;
+        prefix = (envelope + index + content).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writeFrame(DataBuffer buffer, String finishReason) {
+        buffer.write(prefix);
+        buffer.write(escaped, StandardCharsets.UTF_8);
+        buffer.write(separator);
+        buffer.write(finishReason, StandardCharsets.UTF_8);
+        if (logprobsContent.length() == 0) {
+            buffer.write(FRAME_END);
+            return;
+        }
+        buffer.write(LOGPROBS_START);
+        buffer.write(logprobsContent, StandardCharsets.UTF_8);
+        buffer.write(LOGPROBS_END);
+        logprobsContent.setLength(0);
+    }
+
+    private void appendLogprobs(Token token) {
+        TokenLogprob logprob = logprobs == null ? null : logprobs.apply(token);
+        if (logprob == null) {
+            return;
+        }
+        if (logprobsContent.length() > 0) {
+            logprobsContent.append(',');
+        }
+        appendLogprob(logprob);
+        if (logprob.getTopLogprobs() != null) {
+            logprobsContent.setLength(logprobsContent.length() - 1);
+            logprobsContent.append(",\"top_logprobs\":[");
+            for (int i = 0; i < logprob.getTopLogprobs().size(); i++) {
+                if (i > 0) {
+                    logprobsContent.append(',');
+                }
+                appendLogprob(logprob.getTopLogprobs().get(i));
+            }
+            logprobsContent.append("]}");
+        }
+    }
+
+    private void appendLogprob(TokenLogprob logprob) {
+        logprobsContent.append("{\"token\":\"");
+        escape(logprob.getToken(), logprobsContent);
+        logprobsContent.append("\",\"logprob\":").append(logprob.getLogprob()).append('}');
+    }
+
+    private static void escape(String text, StringBuilder builder) {
+        if (text == null) {
+            return;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package chat.octet.api;
+
+import chat.octet.model.beans.Token;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+
+import java.util.List;
+
+/**
+ * Encodes the generated tokens of one request into the frames of a streaming response.
+ */
+public interface TokenEncoder {
+
+    DataBuffer encode(DataBufferFactory bufferFactory, Token token);
+
+    /**
+     * Encodes coalesced tokens into one buffer.
+     */
+    DataBuffer encode(DataBufferFactory bufferFactory, List<Token> tokens);
+
+}
@@ -0,0 +1,252 @@
+package chat.octet.api;
+
+import chat.octet.api.model.DetokenizeRequestParameter;
+import chat.octet.api.model.TokenizeRequestParameter;
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.InferenceScheduler;
+import chat.octet.engine.PromptCache;
+import chat.octet.exceptions.InferenceRejectedException;
+import chat.octet.exceptions.TooManyRequestsException;
+import chat.octet.metrics.InferenceMetrics;
+import chat.octet.model.LlamaService;
+import chat.octet.model.TokenDecoder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RequestPredicates;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Tokenizer endpoints, binary bodies are little-endian int32 token ids
+ * (batch responses prefix the ids of each input with their count).
+ * <p>
+ * Requests run on the inference scheduler (bounded, rejected once full) without a generation
+ * ticket. A model that is not resident (default model unless the {@code model} parameter is set)
+ * is loaded on the generation lane, that load is admitted like a generation of the model.
+ */
+@Slf4j
+@Configuration
+public class TokenizerService {
+
+    private final static int MAX_BATCH_SIZE = 8192;
+    //inputs tokenized by one scheduler task, partitions run in parallel
+    private final static int PARTITION_SIZE = 256;
+
+    private final InferenceScheduler inferenceScheduler;
+    private final GenerationEngine generationEngine;
+    private final AdmissionController admissionController;
+    private final PromptCache promptCache;
+    private final InferenceMetrics inferenceMetrics;
+
+    public TokenizerService(InferenceScheduler inferenceScheduler, GenerationEngine generationEngine, AdmissionController admissionController,
+                            PromptCache promptCache, InferenceMetrics inferenceMetrics) {
+        this.inferenceScheduler = inferenceScheduler;
+        this.generationEngine = generationEngine;
+        this.admissionController = admissionController;
+        this.promptCache = promptCache;
+        this.inferenceMetrics = inferenceMetrics;
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> tokenizeFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/tokenize").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(String.class).flatMap(content -> {
+                    long startNanos = System.nanoTime();
+                    String model = getModelId(serverRequest.queryParam("model").orElse(null));
+                    return loaded(model, inferenceScheduler.execute(() -> promptCache.tokenize(resident(model), content)))
+                            .doOnSuccess(result -> inferenceMetrics.recordLatency("tokenize", startNanos))
+                            .flatMap(tokens -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(tokens)))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        ).andRoute(
+                RequestPredicates.POST("/v1/tokenize").and(RequestPredicates.accept(MediaType.APPLICATION_OCTET_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(String.class).flatMap(content -> {
+                    long startNanos = System.nanoTime();
+                    String model = getModelId(serverRequest.queryParam("model").orElse(null));
+                    return loaded(model, inferenceScheduler.execute(() -> toBytes(promptCache.tokenize(resident(model), content))))
+                            .doOnSuccess(result -> inferenceMetrics.recordLatency("tokenize", startNanos))
+                            .flatMap(tokens -> ServerResponse.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(BodyInserters.fromValue(tokens)))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        );
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> detokenizeFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/detokenize").and(RequestPredicates.contentType(MediaType.APPLICATION_OCTET_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(byte[].class).flatMap(content -> {
+                    if (content.length % Integer.BYTES != 0) {
+                        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                                .body(BodyInserters.fromValue(MessageFormat.format("Request body length must be a multiple of {0} bytes.", Integer.BYTES)));
+                    }
+                    return detokenize(serverRequest.queryParam("model").orElse(null), fromBytes(content));
+                })
+        ).andRoute(
+                RequestPredicates.POST("/v1/detokenize").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(int[].class).flatMap(tokens -> detokenize(serverRequest.queryParam("model").orElse(null), tokens))
+        );
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> tokenizeBatchFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/tokenize/batch").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(TokenizeRequestParameter.class).flatMap(requestParams -> {
+                    long startNanos = System.nanoTime();
+                    List<String> input = requestParams.getInput();
+                    if (input == null || input.isEmpty() || input.size() > MAX_BATCH_SIZE) {
+                        return batchSizeError("input");
+                    }
+                    String model = getModelId(requestParams.getModel());
+                    Map<String, Object> data = Maps.newHashMap();
+                    Mono<?> result = requestParams.isCountOnly()
+                            ? tokenize(model, input, tokens -> tokens.length).doOnNext(counts -> data.put("counts", counts))
+                            : tokenize(model, input, Function.identity()).doOnNext(tokens -> data.put("tokens", tokens));
+                    return loaded(model, result).doOnSuccess(value -> inferenceMetrics.recordLatency("tokenize_batch", startNanos))
+                            .flatMap(value -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(data)))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        ).andRoute(
+                RequestPredicates.POST("/v1/tokenize/batch").and(RequestPredicates.accept(MediaType.APPLICATION_OCTET_STREAM)),
+                serverRequest -> serverRequest.bodyToMono(TokenizeRequestParameter.class).flatMap(requestParams -> {
+                    long startNanos = System.nanoTime();
+                    List<String> input = requestParams.getInput();
+                    if (input == null || input.isEmpty() || input.size() > MAX_BATCH_SIZE) {
+                        return batchSizeError("input");
+                    }
+                    String model = getModelId(requestParams.getModel());
+                    Mono<byte[]> result = requestParams.isCountOnly()
+                            ? tokenize(model, input, tokens -> tokens.length).map(counts -> toBytes(counts.stream().mapToInt(Integer::intValue).toArray()))
+                            : tokenize(model, input, Function.identity()).map(TokenizerService::toBytes);
+                    return loaded(model, result).doOnSuccess(value -> inferenceMetrics.recordLatency("tokenize_batch", startNanos))
+                            .flatMap(value -> ServerResponse.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(BodyInserters.fromValue(value)))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        );
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> detokenizeBatchFunction() {
+        return RouterFunctions.route(
+                RequestPredicates.POST("/v1/detokenize/batch").and(RequestPredicates.accept(MediaType.APPLICATION_JSON)),
+                serverRequest -> serverRequest.bodyToMono(DetokenizeRequestParameter.class).flatMap(requestParams -> {
+                    long startNanos = System.nanoTime();
+                    List<int[]> tokens = requestParams.getTokens();
+                    if (tokens == null || tokens.isEmpty() || tokens.size() > MAX_BATCH_SIZE) {
+                        return batchSizeError("tokens");
+                    }
+                    String model = getModelId(requestParams.getModel());
+                    Mono<Map<String, Object>> data = partitioned(model, tokens, TokenDecoder::decodeToken).map(text -> {
+                        Map<String, Object> result = Maps.newHashMap();
+                        result.put("text", text);
+                        return result;
+                    });
+                    return loaded(model, data).doOnSuccess(value -> inferenceMetrics.recordLatency("detokenize_batch", startNanos))
+                            .flatMap(value -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(value)))
+                            .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+                })
+        );
+    }
+
+    private Mono<ServerResponse> detokenize(String name, int[] tokens) {
+        long startNanos = System.nanoTime();
+        String model = getModelId(name);
+        return loaded(model, inferenceScheduler.execute(() -> {
+            resident(model);
+            return TokenDecoder.decodeToken(tokens);
+        })).doOnSuccess(result -> inferenceMetrics.recordLatency("detokenize", startNanos))
+                .flatMap(text -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(text)))
+                .onErrorResume(TooManyRequestsException.class, ChatCompletionService::tooManyRequests);
+    }
+
+    //batch inputs are rarely prompts, they bypass the prompt cache instead of evicting it
+    private <T> Mono<List<T>> tokenize(String model, List<String> input, Function<int[], T> mapper) {
+        return partitioned(model, input, text -> mapper.apply(LlamaService.tokenize(text, false, true)));
+    }
+
+    private <I, O> Mono<List<O>> partitioned(String model, List<I> input, Function<I, O> task) {
+        return Flux.fromIterable(Lists.partition(input, PARTITION_SIZE))
+                .flatMapSequential(partition -> inferenceScheduler.execute(() -> {
+                    resident(model);
+                    return partition.stream().map(task).collect(Collectors.toList());
+                }))
+                .concatMapIterable(Function.identity())
+                .collectList();
+    }
+
+    /**
+     * Runs the tokenizer task with the model loaded.
+     */
+    private <T> Mono<T> loaded(String model, Mono<T> task) {
+        if (ModelBuilder.getInstance().getResidentModel(model).isPresent()) {
+            return task;
+        }
+        Mono<?> load = Mono.usingWhen(admissionController.acquire(model, null), ticket -> {
+            inferenceMetrics.recordQueueWait(model, ticket.getWaitTime());
+            return generationEngine.execute(() -> ModelBuilder.getInstance().getModel(model));
+        }, ticket -> Mono.fromRunnable(ticket::release));
+        return load.then(task);
+    }
+
+    /**
+     * Checks the model is still loaded, scheduler tasks run while no model is loaded or unloaded.
+     */
+    private static String resident(String model) {
+        if (!ModelBuilder.getInstance().getResidentModel(model).isPresent()) {
+            throw new InferenceRejectedException(MessageFormat.format("Model {0} was unloaded by another request, please retry", model));
+        }
+        return model;
+    }
+
+    private static String getModelId(String name) {
+        return ModelBuilder.getInstance().getModelSetting(StringUtils.defaultIfBlank(name, ModelBuilder.DEFAULT_MODEL_NAME)).getModelName();
+    }
+
+    private static Mono<ServerResponse> batchSizeError(String name) {
+        return ServerResponse.badRequest().contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(MessageFormat.format("Request parameter ''{0}'' must contain 1 to {1} items.", name, MAX_BATCH_SIZE)));
+    }
+
+    private static byte[] toBytes(int[] tokens) {
+        ByteBuffer buffer = ByteBuffer.allocate(tokens.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asIntBuffer().put(tokens);
+        return buffer.array();
+    }
+
+    private static byte[] toBytes(List<int[]> tokens) {
+        int size = tokens.stream().mapToInt(item -> item.length + 1).sum();
+        ByteBuffer buffer = ByteBuffer.allocate(size * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int[] item : tokens) {
+            buffer.putInt(item.length);
+            buffer.asIntBuffer().put(item);
+            buffer.position(buffer.position() + item.length * Integer.BYTES);
+        }
+        return buffer.array();
+    }
+
+    private static int[] fromBytes(byte[] content) {
+        int[] tokens = new int[content.length / Integer.BYTES];
+        ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(tokens);
+        return tokens;
+    }
+}
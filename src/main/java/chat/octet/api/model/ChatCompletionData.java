@@ -15,6 +15,7 @@ public class ChatCompletionData {
     private ChatMessage message;
     @JsonProperty("finish_reason")
     private String finishReason;
+    private Logprobs logprobs;
 
     public ChatCompletionData() {
     }
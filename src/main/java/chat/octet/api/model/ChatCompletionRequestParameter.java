@@ -4,6 +4,7 @@ import chat.octet.model.beans.ChatMessage;
 import chat.octet.model.parameters.GenerateParameter;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.Data;
 
 import java.util.List;
@@ -13,6 +14,9 @@ import java.util.Map;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ChatCompletionRequestParameter {
 
+    @JsonProperty("model")
+    private String model;
+
     //chat completion parameters
     @JsonProperty("user")
     private String user;
@@ -43,6 +47,9 @@ public class ChatCompletionRequestParameter {
     @JsonProperty("typical_p")
     private Float typical;
 
+    @JsonProperty("n")
+    private Integer n;
+
     @JsonProperty("stream")
     private boolean stream;
 
@@ -76,6 +83,13 @@ public class ChatCompletionRequestParameter {
     @JsonProperty("logit_bias")
     private Map<Integer, String> logitBias;
 
+    //constrained decoding, either a JSON schema or a regular grammar the output must match
+    @JsonProperty("json_schema")
+    private JsonNode jsonSchema;
+
+    @JsonProperty("grammar")
+    private String grammar;
+
     @JsonProperty("verbose")
     private boolean verbose;
 
@@ -0,0 +1,19 @@
+package chat.octet.api.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DetokenizeRequestParameter {
+
+    @JsonProperty("model")
+    private String model;
+
+    @JsonProperty("tokens")
+    private List<int[]> tokens;
+
+}
@@ -0,0 +1,19 @@
+package chat.octet.api.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class EmbeddingData {
+    private int index;
+    private Object embedding;
+
+    public EmbeddingData() {
+    }
+
+    public EmbeddingData(int index, Object embedding) {
+        this.index = index;
+        this.embedding = embedding;
+    }
+}
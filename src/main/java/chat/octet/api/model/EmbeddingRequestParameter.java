@@ -0,0 +1,28 @@
+package chat.octet.api.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class EmbeddingRequestParameter {
+
+    @JsonProperty("model")
+    private String model;
+
+    @JsonProperty("input")
+    @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+    private List<String> input;
+
+    //float (default) or base64, base64 is the little-endian float32 vector
+    @JsonProperty("encoding_format")
+    private String encodingFormat;
+
+    @JsonProperty("user")
+    private String user;
+
+}
@@ -0,0 +1,17 @@
+package chat.octet.api.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class Logprobs {
+    private List<TokenLogprob> content;
+
+    public Logprobs() {
+    }
+
+    public Logprobs(List<TokenLogprob> content) {
+        this.content = content;
+    }
+}
@@ -0,0 +1,14 @@
+package chat.octet.api.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ServingParameter {
+
+    private String modelName;
+
+    private int replicas = 1;
+
+}
@@ -0,0 +1,25 @@
+package chat.octet.api.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TokenLogprob {
+    private String token;
+    private float logprob;
+    @JsonProperty("top_logprobs")
+    private List<TokenLogprob> topLogprobs;
+
+    public TokenLogprob() {
+    }
+
+    public TokenLogprob(String token, float logprob, List<TokenLogprob> topLogprobs) {
+        this.token = token;
+        this.logprob = logprob;
+        this.topLogprobs = topLogprobs;
+    }
+}
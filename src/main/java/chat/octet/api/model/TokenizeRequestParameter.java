@@ -0,0 +1,25 @@
+package chat.octet.api.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class TokenizeRequestParameter {
+
+    @JsonProperty("model")
+    private String model;
+
+    @JsonProperty("input")
+    @JsonFormat(with = JsonFormat.Feature.ACCEPT_SINGLE_VALUE_AS_ARRAY)
+    private List<String> input;
+
+    //only return the number of tokens of each input
+    @JsonProperty("count_only")
+    private boolean countOnly;
+
+}
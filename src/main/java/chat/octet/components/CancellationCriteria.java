@@ -0,0 +1,32 @@
+package chat.octet.components;
+
+import chat.octet.model.components.criteria.StoppingCriteria;
+
+/**
+ * Stops generation at the next token once the request is cancelled (client disconnect),
+ * and counts the generated tokens until then.
+ */
+public final class CancellationCriteria implements StoppingCriteria {
+
+    private volatile boolean cancelled;
+    //only written by the decoder thread
+    private volatile int tokens;
+
+    @Override
+    public boolean criteria(int[] inputTokenIds, float[] scores, Object... args) {
+        tokens++;
+        return cancelled;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public int getTokens() {
+        return tokens;
+    }
+}
@@ -0,0 +1,569 @@
+package chat.octet.components;
+
+import chat.octet.exceptions.ServerException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Character automaton of a regular grammar, written in the usual regex syntax
+ * (literals, escapes, classes, ".", groups, "|", "*", "+", "?", "{n,m}"); the whole output must match.
+ * <p>
+ * The pattern compiles to an NFA, DFA states are built lazily from the NFA closures the first
+ * time a character leads to them, so only the states reachable by the generated text are built.
+ * <p>
+ * Not thread safe while states are built, the owner serializes the steps until it calls
+ * {@link #freeze()}; a frozen automaton is read only and its unknown transitions are dead.
+ */
+public final class GrammarAutomaton {
+
+    public static final int DEAD = -1;
+    private static final int UNKNOWN = -2;
+    private static final int ASCII = 128;
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+    private static final int MAX_REPEAT = 256;
+    private static final int MAX_NFA_STATES = 200000;
+    private static final int MAX_DFA_STATES = 20000;
+
+    //NFA, a state either has a character transition or epsilon transitions
+    private final List<int[]> ranges = Lists.newArrayList();
+    private final List<Integer> targets = Lists.newArrayList();
+    private final List<int[]> epsilons = Lists.newArrayList();
+    private final int accept;
+
+    //lazy DFA
+    private final List<BitSet> states = Lists.newArrayList();
+    private final Map<BitSet, Integer> stateIndex = Maps.newHashMap();
+    private final List<int[]> asciiTransitions = Lists.newArrayList();
+    private final List<Map<Character, Integer>> transitions = Lists.newArrayList();
+    private final List<Boolean> accepting = Lists.newArrayList();
+    private final List<Boolean> terminal = Lists.newArrayList();
+    private final int start;
+    private volatile boolean frozen;
+
+    private GrammarAutomaton(Node pattern) {
+        int[] fragment = build(pattern);
+        this.accept = fragment[1];
+        BitSet initial = new BitSet();
+        initial.set(fragment[0]);
+        this.start = intern(closure(initial));
+    }
+
+    public static GrammarAutomaton compile(String pattern) {
+        try {
+            return new GrammarAutomaton(new Parser(pattern).parse());
+        } catch (IllegalArgumentException e) {
+            throw new ServerException(MessageFormat.format("Invalid grammar: {0}", e.getMessage()));
+        }
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return next state, or {@link #DEAD} if the character is not allowed.
+     */
+    public int step(int state, char c) {
+        if (state < 0) {
+            return DEAD;
+        }
+        Integer next;
+        if (c < ASCII) {
+            next = asciiTransitions.get(state)[c];
+            if (next != UNKNOWN) {
+                return next;
+            }
+        } else {
+            next = transitions.get(state).get(c);
+            if (next != null) {
+                return next;
+            }
+        }
+        if (frozen) {
+            return DEAD;
+        }
+        BitSet moved = new BitSet();
+        BitSet current = states.get(state);
+        for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+            if (ranges.get(s) != null && contains(ranges.get(s), c)) {
+                moved.set(targets.get(s));
+            }
+        }
+        next = moved.isEmpty() ? DEAD : intern(closure(moved));
+        if (c < ASCII) {
+            asciiTransitions.get(state)[c] = next;
+        } else {
+            transitions.get(state).put(c, next);
+        }
+        return next;
+    }
+
+    public boolean isAccepting(int state) {
+        return state >= 0 && accepting.get(state);
+    }
+
+    /**
+     * @return true if no character is allowed after this state.
+     */
+    public boolean isTerminal(int state) {
+        return state < 0 || terminal.get(state);
+    }
+
+    public int getStateCount() {
+        return states.size();
+    }
+
+    /**
+     * Stops building states, the transitions built so far are shared without locking.
+     */
+    void freeze() {
+        frozen = true;
+    }
+
+    private int intern(BitSet set) {
+        Integer index = stateIndex.get(set);
+        if (index != null) {
+            return index;
+        }
+        if (states.size() >= MAX_DFA_STATES) {
+            throw new ServerException(MessageFormat.format("Grammar is too complex, more than {0} states", MAX_DFA_STATES));
+        }
+        index = states.size();
+        boolean end = true;
+        for (int s = set.nextSetBit(0); s >= 0 && end; s = set.nextSetBit(s + 1)) {
+            end = ranges.get(s) == null;
+        }
+        int[] ascii = new int[ASCII];
+        Arrays.fill(ascii, UNKNOWN);
+        states.add(set);
+        stateIndex.put(set, index);
+        asciiTransitions.add(ascii);
+        transitions.add(Maps.newHashMap());
+        accepting.add(set.get(accept));
+        terminal.add(end);
+        return index;
+    }
+
+    private BitSet closure(BitSet set) {
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int s = set.nextSetBit(0); s >= 0; s = set.nextSetBit(s + 1)) {
+            stack.push(s);
+        }
+        while (!stack.isEmpty()) {
+            for (int next : epsilons.get(stack.pop())) {
+                if (!set.get(next)) {
+                    set.set(next);
+                    stack.push(next);
+                }
+            }
+        }
+        return set;
+    }
+
+    private static boolean contains(int[] set, char c) {
+        for (int i = 0; i < set.length; i += 2) {
+            if (c < set[i]) {
+                return false;
+            }
+            if (c <= set[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int newState() {
+        if (ranges.size() >= MAX_NFA_STATES) {
+            throw new IllegalArgumentException(MessageFormat.format("more than {0} states", MAX_NFA_STATES));
+        }
+        ranges.add(null);
+        targets.add(-1);
+        epsilons.add(new int[0]);
+        return ranges.size() - 1;
+    }
+
+    private void epsilon(int from, int to) {
+        int[] current = epsilons.get(from);
+        int[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = to;
+        epsilons.set(from, next);
+    }
+
+    /**
+     * @return start and end state of the fragment, a new copy on every call.
+     */
+    private int[] build(Node node) {
+        if (node instanceof CharSet) {
+            int from = newState();
+            int to = newState();
+            ranges.set(from, ((CharSet) node).ranges);
+            targets.set(from, to);
+            return new int[]{from, to};
+        }
+        if (node instanceof Sequence) {
+            int from = newState();
+            int end = from;
+            for (Node child : ((Sequence) node).nodes) {
+                int[] fragment = build(child);
+                epsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            return new int[]{from, end};
+        }
+        if (node instanceof Alternation) {
+            int from = newState();
+            int to = newState();
+            for (Node child : ((Alternation) node).nodes) {
+                int[] fragment = build(child);
+                epsilon(from, fragment[0]);
+                epsilon(fragment[1], to);
+            }
+            return new int[]{from, to};
+        }
+        Repeat repeat = (Repeat) node;
+        int from = newState();
+        int end = from;
+        for (int i = 0; i < repeat.min; i++) {
+            int[] fragment = build(repeat.node);
+            epsilon(end, fragment[0]);
+            end = fragment[1];
+        }
+        if (repeat.max < 0) {
+            int[] fragment = build(repeat.node);
+            int to = newState();
+            epsilon(end, fragment[0]);
+            epsilon(end, to);
+            epsilon(fragment[1], fragment[0]);
+            epsilon(fragment[1], to);
+            return new int[]{from, to};
+        }
+        int to = newState();
+        for (int i = repeat.min; i < repeat.max; i++) {
+            int[] fragment = build(repeat.node);
+            epsilon(end, fragment[0]);
+            epsilon(end, to);
+            end = fragment[1];
+        }
+        epsilon(end, to);
+        return new int[]{from, to};
+    }
+
+    private interface Node {
+    }
+
+    private static final class CharSet implements Node {
+        //sorted, disjoint inclusive ranges: lo0, hi0, lo1, hi1...
+        private final int[] ranges;
+
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+    }
+
+    private static final class Sequence implements Node {
+        private final List<Node> nodes;
+
+        private Sequence(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class Alternation implements Node {
+        private final List<Node> nodes;
+
+        private Alternation(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+    }
+
+    private static final class Repeat implements Node {
+        private final Node node;
+        private final int min;
+        //-1 for unbounded
+        private final int max;
+
+        private Repeat(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private static final class Parser {
+        private final String pattern;
+        private int pos;
+
+        private Parser(String pattern) {
+            this.pattern = pattern == null ? "" : pattern;
+        }
+
+        private Node parse() {
+            if (peek('^')) {
+                pos++;
+            }
+            Node node = alternation();
+            if (pos < pattern.length()) {
+                throw error("unexpected ')'");
+            }
+            return node;
+        }
+
+        private Node alternation() {
+            List<Node> nodes = Lists.newArrayList(sequence());
+            while (peek('|')) {
+                pos++;
+                nodes.add(sequence());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Alternation(nodes);
+        }
+
+        private Node sequence() {
+            List<Node> nodes = Lists.newArrayList();
+            while (pos < pattern.length() && !peek('|') && !peek(')')) {
+                if (peek('$') && pos == pattern.length() - 1) {
+                    pos++;
+                    break;
+                }
+                nodes.add(quantifier(atom()));
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Sequence(nodes);
+        }
+
+        private Node quantifier(Node node) {
+            while (pos < pattern.length()) {
+                char c = pattern.charAt(pos);
+                int min;
+                int max;
+                if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    pos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    pos++;
+                } else if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    pos++;
+                } else if (c == '{' && pos + 1 < pattern.length() && Character.isDigit(pattern.charAt(pos + 1))) {
+                    pos++;
+                    min = number();
+                    max = min;
+                    if (peek(',')) {
+                        pos++;
+                        max = peek('}') ? -1 : number();
+                    }
+                    expect('}');
+                    if (max >= 0 && max < min) {
+                        throw error("invalid repetition range");
+                    }
+                } else {
+                    return node;
+                }
+                if (Math.max(min, max) > MAX_REPEAT) {
+                    throw error(MessageFormat.format("repetition over {0}", MAX_REPEAT));
+                }
+                //lazy and possessive forms match the same language
+                if (peek('?') || peek('+')) {
+                    pos++;
+                }
+                node = new Repeat(node, min, max);
+            }
+            return node;
+        }
+
+        private Node atom() {
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (pattern.startsWith("?:", pos)) {
+                        pos += 2;
+                    }
+                    Node node = alternation();
+                    expect(')');
+                    return node;
+                case '[':
+                    return charClass();
+                case '.':
+                    return new CharSet(negate(new int[]{'\n', '\n'}));
+                case '\\':
+                    return new CharSet(escape());
+                case '*':
+                case '+':
+                case '?':
+                    throw error("nothing to repeat");
+                default:
+                    return new CharSet(new int[]{c, c});
+            }
+        }
+
+        private Node charClass() {
+            boolean negated = peek('^');
+            if (negated) {
+                pos++;
+            }
+            List<int[]> items = Lists.newArrayList();
+            boolean first = true;
+            while (first || !peek(']')) {
+                if (pos >= pattern.length()) {
+                    throw error("unclosed character class");
+                }
+                first = false;
+                int[] item;
+                char c = pattern.charAt(pos++);
+                if (c == '\\') {
+                    item = escape();
+                } else {
+                    item = new int[]{c, c};
+                }
+                //range, unless the dash is the last character of the class
+                if (item.length == 2 && item[0] == item[1] && peek('-') && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    char end = pattern.charAt(pos++);
+                    int[] to = end == '\\' ? escape() : new int[]{end, end};
+                    if (to.length != 2 || to[0] != to[1] || to[0] < item[0]) {
+                        throw error("invalid character range");
+                    }
+                    item = new int[]{item[0], to[0]};
+                }
+                items.add(item);
+            }
+            pos++;
+            int[] set = union(items);
+            return new CharSet(negated ? negate(set) : set);
+        }
+
+        private int[] escape() {
+            if (pos >= pattern.length()) {
+                throw error("trailing backslash");
+            }
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case 'd':
+                    return new int[]{'0', '9'};
+                case 'D':
+                    return negate(new int[]{'0', '9'});
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return negate(WORD);
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return negate(SPACE);
+                case 'n':
+                    return new int[]{'\n', '\n'};
+                case 'r':
+                    return new int[]{'\r', '\r'};
+                case 't':
+                    return new int[]{'\t', '\t'};
+                case 'f':
+                    return new int[]{'\f', '\f'};
+                case 'x':
+                    return single(hex(2));
+                case 'u':
+                    return single(hex(4));
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        throw error("unsupported escape \\" + c);
+                    }
+                    return new int[]{c, c};
+            }
+        }
+
+        private int hex(int digits) {
+            if (pos + digits > pattern.length()) {
+                throw error("invalid hex escape");
+            }
+            try {
+                int value = Integer.parseInt(pattern.substring(pos, pos + digits), 16);
+                pos += digits;
+                return value;
+            } catch (NumberFormatException e) {
+                throw error("invalid hex escape");
+            }
+        }
+
+        private int number() {
+            int begin = pos;
+            while (pos < pattern.length() && Character.isDigit(pattern.charAt(pos))) {
+                pos++;
+            }
+            if (begin == pos || pos - begin > 6) {
+                throw error("invalid repetition");
+            }
+            return Integer.parseInt(pattern.substring(begin, pos));
+        }
+
+        private boolean peek(char c) {
+            return pos < pattern.length() && pattern.charAt(pos) == c;
+        }
+
+        private void expect(char c) {
+            if (!peek(c)) {
+                throw error("missing '" + c + "'");
+            }
+            pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(MessageFormat.format("{0} at position {1}", message, pos));
+        }
+
+        private static int[] single(int c) {
+            return new int[]{c, c};
+        }
+    }
+
+    private static final int[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+    private static final int[] SPACE = {'\t', '\n', '\f', '\r', ' ', ' '};
+
+    private static int[] union(List<int[]> sets) {
+        List<int[]> pairs = Lists.newArrayList();
+        for (int[] set : sets) {
+            for (int i = 0; i < set.length; i += 2) {
+                pairs.add(new int[]{set[i], set[i + 1]});
+            }
+        }
+        pairs.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] merged = new int[pairs.size() * 2];
+        int size = 0;
+        for (int[] pair : pairs) {
+            if (size > 0 && pair[0] <= merged[size - 1] + 1) {
+                merged[size - 1] = Math.max(merged[size - 1], pair[1]);
+            } else {
+                merged[size++] = pair[0];
+                merged[size++] = pair[1];
+            }
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    private static int[] negate(int[] set) {
+        int[] negated = new int[set.length + 2];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < set.length; i += 2) {
+            if (set[i] > next) {
+                negated[size++] = next;
+                negated[size++] = set[i] - 1;
+            }
+            next = set[i + 1] + 1;
+        }
+        if (next <= MAX_CHAR) {
+            negated[size++] = next;
+            negated[size++] = MAX_CHAR;
+        }
+        return Arrays.copyOf(negated, size);
+    }
+
+}
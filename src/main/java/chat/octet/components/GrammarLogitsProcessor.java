@@ -0,0 +1,57 @@
+package chat.octet.components;
+
+import chat.octet.model.components.criteria.StoppingCriteria;
+import chat.octet.model.components.processor.LogitsProcessor;
+
+/**
+ * Constrains the generation to a {@link TokenGrammar}: the logits of the tokens the grammar does not
+ * allow next are masked out (only the end of sequence once no token is allowed), and generation stops
+ * once the grammar is complete and nothing may follow.
+ * Registered both as a logits processor and a stopping criteria, the criteria advances the grammar
+ * state with each generated token.
+ */
+public final class GrammarLogitsProcessor implements LogitsProcessor, StoppingCriteria {
+
+    private final TokenGrammar grammar;
+    private int state;
+    private int advanced = -1;
+
+    public GrammarLogitsProcessor(TokenGrammar grammar) {
+        this.grammar = grammar;
+        this.state = grammar.getStart();
+    }
+
+    @Override
+    public float[] processor(int[] inputTokenIds, float[] scores, Object... args) {
+        long[] mask = grammar.getMask(state);
+        //nothing allowed, e.g. a grammar no token can continue: the generation ends
+        if (mask == null) {
+            mask = grammar.getEndMask();
+        }
+        int length = Math.min(scores.length, mask.length << 6);
+        for (int word = 0; word < mask.length; word++) {
+            long disallowed = ~mask[word];
+            while (disallowed != 0) {
+                int id = (word << 6) + Long.numberOfTrailingZeros(disallowed);
+                if (id >= length) {
+                    break;
+                }
+                scores[id] = Float.NEGATIVE_INFINITY;
+                disallowed &= disallowed - 1;
+            }
+        }
+        return scores;
+    }
+
+    @Override
+    public boolean criteria(int[] inputTokenIds, float[] scores, Object... args) {
+        //only the newly generated tokens advance the grammar, the first call sees a single new token
+        int from = advanced < 0 || advanced > inputTokenIds.length ? inputTokenIds.length - 1 : advanced;
+        advanced = inputTokenIds.length;
+        for (int i = Math.max(from, 0); i < inputTokenIds.length && state >= 0; i++) {
+            state = grammar.advance(state, inputTokenIds[i]);
+        }
+        return state < 0 || grammar.isAccepting(state) && grammar.isTerminal(state);
+    }
+
+}
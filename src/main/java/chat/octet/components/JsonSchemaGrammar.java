@@ -0,0 +1,270 @@
+package chat.octet.components;
+
+import chat.octet.exceptions.ServerException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates a JSON schema to the regular grammar of the JSON documents it accepts, for a
+ * {@link GrammarAutomaton}. Supported keywords: type, properties, required, items, minItems,
+ * maxItems, enum, const, anyOf, oneOf, minLength, maxLength, pattern, format and local $ref.
+ * <p>
+ * A regular grammar cannot nest without bound: free-form values (no type, or an array or object
+ * without items or properties) nest at most {@link #MAX_DEPTH} levels and recursive references are rejected.
+ */
+public final class JsonSchemaGrammar {
+
+    public static final int MAX_DEPTH = 3;
+    private static final int MAX_BOUNDED = 64;
+    private static final String WS = "[ \\t\\n]{0,8}";
+    private static final String STRING_CHAR = "([^\"\\\\\\x00-\\x1f]|\\\\[\"\\\\/bfnrt]|\\\\u[0-9a-fA-F]{4})";
+    private static final String STRING = "\"" + STRING_CHAR + "*\"";
+    private static final String INTEGER = "-?(0|[1-9][0-9]{0,15})";
+    private static final String NUMBER = INTEGER + "(\\.[0-9]{1,16})?([eE][-+]?[0-9]{1,3})?";
+    private static final String BOOLEAN = "(true|false)";
+    private static final String NULL = "null";
+
+    private final JsonNode root;
+    private final Set<String> resolving = Sets.newHashSet();
+
+    private JsonSchemaGrammar(JsonNode root) {
+        this.root = root;
+    }
+
+    /**
+     * @return grammar of the documents matching the schema, surrounded by optional whitespace.
+     */
+    public static String toGrammar(JsonNode schema) {
+        if (schema == null || !(schema.isObject() || schema.isBoolean())) {
+            throw new ServerException("JSON schema must be an object");
+        }
+        return WS + new JsonSchemaGrammar(schema).value(schema) + WS;
+    }
+
+    private String value(JsonNode schema) {
+        if (schema.isBoolean() || schema.size() == 0) {
+            return any(0);
+        }
+        if (schema.has("$ref")) {
+            return reference(schema.get("$ref").asText());
+        }
+        if (schema.has("const")) {
+            return literal(schema.get("const"));
+        }
+        if (schema.has("enum")) {
+            List<String> values = Lists.newArrayList();
+            schema.get("enum").forEach(node -> values.add(literal(node)));
+            return alternation(values);
+        }
+        for (String keyword : new String[]{"anyOf", "oneOf"}) {
+            if (schema.has(keyword)) {
+                List<String> values = Lists.newArrayList();
+                schema.get(keyword).forEach(node -> values.add(value(node)));
+                return alternation(values);
+            }
+        }
+        if (schema.has("allOf") && schema.get("allOf").size() == 1) {
+            return value(schema.get("allOf").get(0));
+        }
+        JsonNode type = schema.get("type");
+        if (type != null && type.isArray()) {
+            List<String> values = Lists.newArrayList();
+            type.forEach(node -> values.add(typed(schema, node.asText())));
+            return alternation(values);
+        }
+        if (type == null) {
+            if (schema.has("properties")) {
+                return typed(schema, "object");
+            }
+            if (schema.has("items")) {
+                return typed(schema, "array");
+            }
+            return any(0);
+        }
+        return typed(schema, type.asText());
+    }
+
+    private String typed(JsonNode schema, String type) {
+        switch (type) {
+            case "string":
+                return string(schema);
+            case "integer":
+                return INTEGER;
+            case "number":
+                return NUMBER;
+            case "boolean":
+                return BOOLEAN;
+            case "null":
+                return NULL;
+            case "array":
+                return array(schema);
+            case "object":
+                return object(schema);
+            default:
+                throw new ServerException(MessageFormat.format("Unsupported JSON schema type: {0}", type));
+        }
+    }
+
+    private String string(JsonNode schema) {
+        if (schema.has("pattern")) {
+            String pattern = schema.get("pattern").asText();
+            pattern = pattern.startsWith("^") ? pattern.substring(1) : pattern;
+            pattern = pattern.endsWith("$") && !pattern.endsWith("\\$") ? pattern.substring(0, pattern.length() - 1) : pattern;
+            return "\"(" + pattern + ")\"";
+        }
+        String format = schema.path("format").asText("");
+        switch (format) {
+            case "date":
+                return "\"[0-9]{4}-[0-9]{2}-[0-9]{2}\"";
+            case "time":
+                return "\"[0-9]{2}:[0-9]{2}:[0-9]{2}(\\.[0-9]{1,9})?(Z|[+-][0-9]{2}:[0-9]{2})?\"";
+            case "date-time":
+                return "\"[0-9]{4}-[0-9]{2}-[0-9]{2}T[0-9]{2}:[0-9]{2}:[0-9]{2}(\\.[0-9]{1,9})?(Z|[+-][0-9]{2}:[0-9]{2})\"";
+            case "uuid":
+                return "\"[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}\"";
+            default:
+                break;
+        }
+        int min = schema.path("minLength").asInt(0);
+        int max = schema.path("maxLength").asInt(-1);
+        if (min == 0 && max < 0) {
+            return STRING;
+        }
+        return "\"" + STRING_CHAR + repeat(min, max) + "\"";
+    }
+
+    private String array(JsonNode schema) {
+        String item = schema.has("items") ? value(schema.get("items")) : any(1);
+        int min = schema.path("minItems").asInt(0);
+        int max = schema.path("maxItems").asInt(-1);
+        String separator = WS + "," + WS;
+        //first item, then the rest with the bounds shifted by one
+        String rest = "(" + separator + item + ")" + repeat(Math.max(min - 1, 0), max < 0 ? -1 : max - 1);
+        String items = item + rest;
+        if (min == 0) {
+            items = max == 0 ? "" : "(" + items + ")?";
+        }
+        return "\\[" + WS + items + WS + "\\]";
+    }
+
+    private String object(JsonNode schema) {
+        JsonNode properties = schema.get("properties");
+        if (properties == null || properties.size() == 0) {
+            return anyObject(0);
+        }
+        Set<String> required = Sets.newHashSet();
+        schema.path("required").forEach(node -> required.add(node.asText()));
+        List<String> requiredMembers = Lists.newArrayList();
+        List<String> optionalMembers = Lists.newArrayList();
+        Iterator<Map.Entry<String, JsonNode>> fields = properties.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String member = quote(field.getKey()) + WS + ":" + WS + value(field.getValue());
+            (required.contains(field.getKey()) ? requiredMembers : optionalMembers).add(member);
+        }
+        String separator = WS + "," + WS;
+        //required members in schema order, then any subset of the optional ones in schema order
+        StringBuilder members = new StringBuilder(String.join(separator, requiredMembers));
+        if (!optionalMembers.isEmpty()) {
+            if (requiredMembers.isEmpty()) {
+                members.append("(").append(optionalSubsets(optionalMembers, 0, separator)).append(")?");
+            } else {
+                for (String member : optionalMembers) {
+                    members.append("(").append(separator).append(member).append(")?");
+                }
+            }
+        }
+        return "\\{" + WS + members + WS + "\\}";
+    }
+
+    /**
+     * @return grammar of the non-empty ordered subsets of the members from index, without a leading separator.
+     */
+    private static String optionalSubsets(List<String> members, int index, String separator) {
+        String member = members.get(index);
+        if (index == members.size() - 1) {
+            return member;
+        }
+        StringBuilder rest = new StringBuilder();
+        for (int i = index + 1; i < members.size(); i++) {
+            rest.append("(").append(separator).append(members.get(i)).append(")?");
+        }
+        return member + rest + "|" + optionalSubsets(members, index + 1, separator);
+    }
+
+    private String reference(String ref) {
+        if (!ref.startsWith("#")) {
+            throw new ServerException(MessageFormat.format("Only local JSON schema references are supported: {0}", ref));
+        }
+        if (!resolving.add(ref)) {
+            throw new ServerException(MessageFormat.format("Recursive JSON schema reference is not supported: {0}", ref));
+        }
+        JsonNode target = root.at(ref.substring(1));
+        if (target.isMissingNode()) {
+            throw new ServerException(MessageFormat.format("JSON schema reference not found: {0}", ref));
+        }
+        String grammar = value(target);
+        resolving.remove(ref);
+        return grammar;
+    }
+
+    /**
+     * @param level nesting level inside the free-form value.
+     */
+    private static String any(int level) {
+        List<String> values = Lists.newArrayList(STRING, NUMBER, BOOLEAN, NULL);
+        if (level < MAX_DEPTH) {
+            String item = any(level + 1);
+            String separator = WS + "," + WS;
+            values.add("\\[" + WS + "(" + item + "(" + separator + item + ")*)?" + WS + "\\]");
+            values.add(anyObject(level));
+        }
+        return alternation(values);
+    }
+
+    private static String anyObject(int level) {
+        String separator = WS + "," + WS;
+        String member = STRING + WS + ":" + WS + any(level + 1);
+        return "\\{" + WS + "(" + member + "(" + separator + member + ")*)?" + WS + "\\}";
+    }
+
+    private static String literal(JsonNode node) {
+        return node.isTextual() ? quote(node.asText()) : escape(node.toString());
+    }
+
+    private static String quote(String text) {
+        return escape(TextNode.valueOf(text).toString());
+    }
+
+    private static String repeat(int min, int max) {
+        if (max >= 0 && max <= MAX_BOUNDED) {
+            return "{" + min + "," + max + "}";
+        }
+        //long bounded repetitions would expand the automaton, only the minimum is enforced
+        return min == 0 ? "*" : "{" + Math.min(min, MAX_BOUNDED) + ",}";
+    }
+
+    private static String alternation(List<String> values) {
+        return values.size() == 1 ? values.get(0) : "(" + String.join("|", values) + ")";
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (char c : text.toCharArray()) {
+            if ("\\.[]{}()*+?^$|".indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+}
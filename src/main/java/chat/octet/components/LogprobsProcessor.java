@@ -0,0 +1,146 @@
+package chat.octet.components;
+
+import chat.octet.api.model.TokenLogprob;
+import chat.octet.model.TokenDecoder;
+import chat.octet.model.beans.Token;
+import chat.octet.model.components.processor.LogitsProcessor;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Captures the log-probabilities of each generation step without changing the logits,
+ * it must be the last processor so that it sees the final logits. The top-N alternatives
+ * are selected with a bounded min-heap over primitive arrays, the vocab is never sorted or boxed.
+ */
+public final class LogprobsProcessor implements LogitsProcessor {
+
+    public static final int MAX_TOP_LOGPROBS = 20;
+    private static final float MIN_LOGPROB = -9999.0f;
+
+    private final int topN;
+    private final int[] topIds;
+    private final float[] topScores;
+    private int topSize;
+    private float[] logits = new float[0];
+    private double logNormalizer;
+
+    public LogprobsProcessor(int topN) {
+        this.topN = Math.max(0, Math.min(topN, MAX_TOP_LOGPROBS));
+        this.topIds = new int[this.topN];
+        this.topScores = new float[this.topN];
+    }
+
+    @Override
+    public float[] processor(int[] inputTokenIds, float[] scores, Object... args) {
+        if (logits.length != scores.length) {
+            logits = new float[scores.length];
+        }
+        System.arraycopy(scores, 0, logits, 0, scores.length);
+        //single pass: online log-sum-exp and top-N selection
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        topSize = 0;
+        for (int i = 0; i < scores.length; i++) {
+            float score = scores[i];
+            if (score == Float.NEGATIVE_INFINITY || Float.isNaN(score)) {
+                continue;
+            }
+            if (score > max) {
+                sum = sum * Math.exp(max - score) + 1;
+                max = score;
+            } else {
+                sum += Math.exp(score - max);
+            }
+            if (topSize < topN) {
+                topIds[topSize] = i;
+                topScores[topSize] = score;
+                siftUp(topSize++);
+            } else if (topN > 0 && score > topScores[0]) {
+                topIds[0] = i;
+                topScores[0] = score;
+                siftDown(0);
+            }
+        }
+        logNormalizer = max + Math.log(sum);
+        return scores;
+    }
+
+    /**
+     * Log-probability of the sampled token at the last captured step, with the top-N alternatives.
+     */
+    public TokenLogprob resolve(Token token) {
+        List<TokenLogprob> alternatives = null;
+        if (topN > 0) {
+            int[] order = sortedTop();
+            alternatives = Lists.newArrayListWithCapacity(order.length);
+            for (int id : order) {
+                alternatives.add(new TokenLogprob(TokenDecoder.decodeToken(id), logprob(id), null));
+            }
+        }
+        return new TokenLogprob(token.getText(), logprob(token.getId()), alternatives);
+    }
+
+    private float logprob(int id) {
+        if (id < 0 || id >= logits.length) {
+            return MIN_LOGPROB;
+        }
+        //every logit masked out or an infinite logit: keep the value finite, NaN is not valid JSON
+        double logprob = logits[id] - logNormalizer;
+        if (Double.isNaN(logprob)) {
+            return logits[id] == Float.POSITIVE_INFINITY ? 0 : MIN_LOGPROB;
+        }
+        return (float) Math.min(Math.max(logprob, MIN_LOGPROB), 0);
+    }
+
+    private int[] sortedTop() {
+        int[] order = new int[topSize];
+        float[] scores = new float[topSize];
+        for (int i = 0; i < topSize; i++) {
+            int j = i;
+            while (j > 0 && scores[j - 1] < topScores[i]) {
+                order[j] = order[j - 1];
+                scores[j] = scores[j - 1];
+                j--;
+            }
+            order[j] = topIds[i];
+            scores[j] = topScores[i];
+        }
+        return order;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (topScores[parent] <= topScores[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= topSize) {
+                return;
+            }
+            int smallest = left + 1 < topSize && topScores[left + 1] < topScores[left] ? left + 1 : left;
+            if (topScores[index] <= topScores[smallest]) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = topIds[a];
+        topIds[a] = topIds[b];
+        topIds[b] = id;
+        float score = topScores[a];
+        topScores[a] = topScores[b];
+        topScores[b] = score;
+    }
+}
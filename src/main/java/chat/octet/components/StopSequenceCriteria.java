@@ -0,0 +1,35 @@
+package chat.octet.components;
+
+import chat.octet.model.TokenDecoder;
+import chat.octet.model.components.criteria.StoppingCriteria;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stops generation as soon as the decoded output completes one of the stop sequences.
+ */
+public final class StopSequenceCriteria implements StoppingCriteria {
+
+    private final StopSequenceMatcher matcher;
+    private int decoded = -1;
+
+    public StopSequenceCriteria(List<String> sequences) {
+        this.matcher = new StopSequenceMatcher(sequences);
+    }
+
+    @Override
+    public boolean criteria(int[] inputTokenIds, float[] scores, Object... args) {
+        if (matcher.isMatched()) {
+            return true;
+        }
+        //only the newly generated tokens are decoded, the first call sees a single new token
+        int from = decoded < 0 || decoded > inputTokenIds.length ? inputTokenIds.length - 1 : decoded;
+        decoded = inputTokenIds.length;
+        if (from < 0 || from >= inputTokenIds.length) {
+            return false;
+        }
+        String text = TokenDecoder.decodeToken(Arrays.copyOfRange(inputTokenIds, from, inputTokenIds.length));
+        return text != null && matcher.feed(text) >= 0;
+    }
+}
@@ -0,0 +1,51 @@
+package chat.octet.components;
+
+import chat.octet.model.beans.Token;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Maps streamed tokens to the text that is safe to send, holding back only the suffix that
+ * may still become a stop sequence and dropping the stop sequence with everything after it.
+ */
+public final class StopSequenceFilter implements Function<Token, String> {
+
+    private final StopSequenceMatcher matcher;
+    private final StringBuilder held = new StringBuilder();
+
+    public StopSequenceFilter(List<String> sequences) {
+        this.matcher = new StopSequenceMatcher(sequences);
+    }
+
+    @Override
+    public String apply(Token token) {
+        if (token.getFinishReason().isFinished()) {
+            //the next tokens belong to another sampled choice
+            String rest = matcher.isMatched() ? StringUtils.EMPTY : release(held.length());
+            matcher.reset();
+            held.setLength(0);
+            return rest;
+        }
+        if (matcher.isMatched()) {
+            return StringUtils.EMPTY;
+        }
+        String text = StringUtils.defaultString(token.getText());
+        held.append(text);
+        int end = matcher.feed(text);
+        if (end >= 0) {
+            int start = held.length() - text.length() + end - matcher.getMatchLength();
+            String released = held.substring(0, Math.max(start, 0));
+            held.setLength(0);
+            return released;
+        }
+        return release(held.length() - matcher.getPartialLength());
+    }
+
+    private String release(int length) {
+        String released = held.substring(0, length);
+        held.delete(0, length);
+        return released;
+    }
+}
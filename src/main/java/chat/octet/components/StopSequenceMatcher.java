@@ -0,0 +1,125 @@
+package chat.octet.components;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Incremental multi-pattern matcher (Aho-Corasick) over a stream of text fragments,
+ * matches may span fragment (token) boundaries.
+ */
+public final class StopSequenceMatcher {
+
+    private final List<Map<Character, Integer>> transitions = Lists.newArrayList();
+    private final int[] fail;
+    private final int[] depth;
+    //length of the longest stop sequence ending at the node
+    private final int[] match;
+    private int state;
+    private int matchLength;
+
+    public StopSequenceMatcher(Collection<String> sequences) {
+        List<String> patterns = sequences.stream().filter(StringUtils::isNotEmpty).distinct().collect(Collectors.toList());
+        Preconditions.checkArgument(!patterns.isEmpty(), "Stop sequences cannot be empty");
+        transitions.add(Maps.newHashMap());
+        List<Integer> depths = Lists.newArrayList(0);
+        List<Integer> terminals = Lists.newArrayList(0);
+        for (String pattern : patterns) {
+            int node = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = transitions.get(node).get(pattern.charAt(i));
+                if (next == null) {
+                    next = transitions.size();
+                    transitions.add(Maps.newHashMap());
+                    depths.add(i + 1);
+                    terminals.add(0);
+                    transitions.get(node).put(pattern.charAt(i), next);
+                }
+                node = next;
+            }
+            terminals.set(node, pattern.length());
+        }
+        int size = transitions.size();
+        this.fail = new int[size];
+        this.depth = depths.stream().mapToInt(Integer::intValue).toArray();
+        this.match = terminals.stream().mapToInt(Integer::intValue).toArray();
+        Deque<Integer> queue = new ArrayDeque<>(transitions.get(0).values());
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (Map.Entry<Character, Integer> entry : transitions.get(node).entrySet()) {
+                int child = entry.getValue();
+                fail[child] = node == 0 ? 0 : step(fail[node], entry.getKey());
+                if (match[child] == 0) {
+                    match[child] = match[fail[child]];
+                }
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Feeds the next fragment of text.
+     *
+     * @return offset in the fragment right after the first completed stop sequence, or -1.
+     */
+    public int feed(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, text.charAt(i));
+            if (match[state] > 0) {
+                matchLength = match[state];
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    public void reset() {
+        state = 0;
+        matchLength = 0;
+    }
+
+    public boolean isMatched() {
+        return matchLength > 0;
+    }
+
+    public int getMatchLength() {
+        return matchLength;
+    }
+
+    /**
+     * Length of the longest suffix of the text fed so far that may still become a stop sequence.
+     */
+    public int getPartialLength() {
+        return depth[state];
+    }
+
+    public static String truncate(Collection<String> sequences, String text) {
+        if (sequences == null || text == null || sequences.stream().allMatch(StringUtils::isEmpty)) {
+            return text;
+        }
+        StopSequenceMatcher matcher = new StopSequenceMatcher(sequences);
+        int end = matcher.feed(text);
+        return end < 0 ? text : text.substring(0, end - matcher.getMatchLength());
+    }
+
+    private int step(int node, char c) {
+        while (true) {
+            Integer next = transitions.get(node).get(c);
+            if (next != null) {
+                return next;
+            }
+            if (node == 0) {
+                return 0;
+            }
+            node = fail[node];
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package chat.octet.components;
+
+import chat.octet.exceptions.ServerException;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Sets;
+
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A grammar automaton over the vocabulary of a model: the tokens allowed in each grammar state are
+ * computed once as a bitset over the vocabulary and shared by every request using the grammar.
+ * <p>
+ * {@link #precompute(int)} builds the masks of every state the tokens can reach, a few states per
+ * call so that the build can be split in short tasks, then freezes the automaton so that generations
+ * read it without locking. Until then (e.g. batch inference) masks are built lazily, one state at a
+ * time under the grammar monitor.
+ */
+public final class TokenGrammar {
+
+    private static final long[] NONE = new long[0];
+    //states x vocabulary size, 32 MB of masks
+    private static final long MAX_MASK_BITS = 1L << 28;
+
+    private final GrammarAutomaton automaton;
+    private final Supplier<TokenVocabulary> vocabulary;
+    private final Map<Integer, long[]> masks = new ConcurrentHashMap<>();
+    private final Supplier<long[]> endMask;
+    private volatile boolean ready;
+    private ServerException failure;
+    //breadth first search of precompute, guarded by the grammar monitor
+    private Set<Integer> seen;
+    private Deque<Integer> frontier;
+
+    /**
+     * @param vocabulary loaded on the first mask, the grammar is validated without the model.
+     */
+    public TokenGrammar(GrammarAutomaton automaton, Supplier<TokenVocabulary> vocabulary) {
+        this.automaton = automaton;
+        this.vocabulary = vocabulary;
+        this.endMask = Suppliers.memoize(this::computeEndMask);
+    }
+
+    public int getStart() {
+        return automaton.getStart();
+    }
+
+    /**
+     * @return true once the masks of all the reachable states are built.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void precompute() {
+        precompute(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds the masks of the states reachable from the start by the tokens of the vocabulary, breadth
+     * first, must run while the model of the vocabulary stays loaded. The next call resumes the build.
+     *
+     * @param states max number of masks built by this call.
+     * @return true once all the reachable states are built.
+     * @throws ServerException if the grammar reaches more states than an automaton may build, or its
+     *                         masks exceed {@link #MAX_MASK_BITS}.
+     */
+    public synchronized boolean precompute(int states) {
+        if (ready) {
+            return true;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (frontier == null) {
+            seen = Sets.newHashSet(automaton.getStart());
+            frontier = new ArrayDeque<>(seen);
+        }
+        try {
+            long maxStates = MAX_MASK_BITS / Math.max(1, vocabulary.get().getSize());
+            for (int i = 0; i < states && !frontier.isEmpty(); i++) {
+                int state = frontier.poll();
+                masks.put(state, computeMask(state, next -> {
+                    if (seen.add(next)) {
+                        frontier.add(next);
+                    }
+                }));
+                if (seen.size() > maxStates) {
+                    throw new ServerException(MessageFormat.format("Grammar is too complex, its token masks exceed {0} MB", MAX_MASK_BITS >>> 23));
+                }
+            }
+        } catch (ServerException e) {
+            failure = e;
+            throw e;
+        }
+        if (!frontier.isEmpty()) {
+            return false;
+        }
+        seen = null;
+        frontier = null;
+        automaton.freeze();
+        ready = true;
+        return true;
+    }
+
+    /**
+     * @return state after the token, {@link GrammarAutomaton#DEAD} if the token is not allowed.
+     */
+    public int advance(int state, int tokenId) {
+        if (ready) {
+            return walk(state, tokenId);
+        }
+        synchronized (this) {
+            return walk(state, tokenId);
+        }
+    }
+
+    public boolean isAccepting(int state) {
+        if (ready) {
+            return automaton.isAccepting(state);
+        }
+        synchronized (this) {
+            return automaton.isAccepting(state);
+        }
+    }
+
+    public boolean isTerminal(int state) {
+        if (ready) {
+            return automaton.isTerminal(state);
+        }
+        synchronized (this) {
+            return automaton.isTerminal(state);
+        }
+    }
+
+    /**
+     * @return bitset of the tokens allowed in the state, control tokens only once the grammar is
+     * complete, or null if no token is allowed.
+     */
+    public long[] getMask(int state) {
+        if (state < 0) {
+            return null;
+        }
+        long[] mask = masks.get(state);
+        if (mask == null) {
+            //not reachable by any token once precomputed
+            if (ready) {
+                return null;
+            }
+            synchronized (this) {
+                mask = masks.computeIfAbsent(state, key -> computeMask(key, next -> {
+                }));
+            }
+        }
+        return mask.length == 0 ? null : mask;
+    }
+
+    /**
+     * @return bitset of the end of sequence token, sampled when the grammar allows nothing else.
+     */
+    public long[] getEndMask() {
+        return endMask.get();
+    }
+
+    public int getMaskCount() {
+        return masks.size();
+    }
+
+    private int walk(int state, int tokenId) {
+        String text = vocabulary.get().getText(tokenId);
+        if (text == null) {
+            return GrammarAutomaton.DEAD;
+        }
+        for (int i = 0; i < text.length() && state >= 0; i++) {
+            state = automaton.step(state, text.charAt(i));
+        }
+        return state;
+    }
+
+    /**
+     * @param reached receives the state after each allowed token.
+     */
+    private long[] computeMask(int state, IntConsumer reached) {
+        TokenVocabulary tokens = vocabulary.get();
+        long[] mask = new long[(tokens.getSize() + 63) >>> 6];
+        boolean empty = true;
+        //states[k] is the state after the first k characters of the previous text, valid for k <= walked
+        int[] states = new int[64];
+        states[0] = state;
+        String previous = "";
+        int walked = 0;
+        for (int id : tokens.getSorted()) {
+            String text = tokens.getText(id);
+            int common = commonPrefix(previous, text);
+            previous = text;
+            if (common > walked) {
+                //shares the prefix the previous text died on
+                continue;
+            }
+            if (states.length <= text.length()) {
+                states = Arrays.copyOf(states, text.length() + 1);
+            }
+            int current = states[common];
+            int i = common;
+            while (i < text.length()) {
+                current = automaton.step(current, text.charAt(i));
+                if (current < 0) {
+                    break;
+                }
+                states[++i] = current;
+            }
+            walked = i;
+            if (i == text.length()) {
+                mask[id >>> 6] |= 1L << id;
+                empty = false;
+                reached.accept(states[i]);
+            }
+        }
+        if (automaton.isAccepting(state)) {
+            for (int id : tokens.getControls()) {
+                mask[id >>> 6] |= 1L << id;
+                empty = false;
+            }
+        }
+        return empty ? NONE : mask;
+    }
+
+    private long[] computeEndMask() {
+        TokenVocabulary tokens = vocabulary.get();
+        long[] mask = new long[(tokens.getSize() + 63) >>> 6];
+        int eos = tokens.getEos();
+        if (eos >= 0 && eos < tokens.getSize()) {
+            mask[eos >>> 6] |= 1L << eos;
+        } else {
+            for (int id : tokens.getControls()) {
+                mask[id >>> 6] |= 1L << id;
+            }
+        }
+        return mask;
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+}
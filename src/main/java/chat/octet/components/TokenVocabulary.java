@@ -0,0 +1,81 @@
+package chat.octet.components;
+
+import chat.octet.model.LlamaService;
+import chat.octet.model.TokenDecoder;
+
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Decoded text of every token of the loaded model, sorted so that tokens sharing a prefix are
+ * adjacent and a grammar mask walks each prefix once.
+ * <p>
+ * Control tokens (e.g. end of sequence) decode to an empty text. Tokens holding a partial UTF-8
+ * character cannot be checked against a grammar and are never allowed.
+ */
+public final class TokenVocabulary {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    //null for the tokens that are never allowed
+    private final String[] texts;
+    //tokens with a text, in text order
+    private final int[] sorted;
+    private final int[] controls;
+    private final int eos;
+
+    /**
+     * @param eos end of sequence token, forced when a grammar allows nothing else.
+     */
+    public TokenVocabulary(String[] texts, int eos) {
+        this.eos = eos;
+        this.texts = new String[texts.length];
+        for (int id = 0; id < texts.length; id++) {
+            String text = texts[id];
+            this.texts[id] = text == null || text.indexOf(REPLACEMENT) >= 0 ? null : text;
+        }
+        this.sorted = IntStream.range(0, texts.length).filter(id -> !isEmpty(this.texts[id])).boxed()
+                .sorted(Comparator.comparing(id -> this.texts[id])).mapToInt(Integer::intValue).toArray();
+        this.controls = IntStream.range(0, texts.length).filter(id -> this.texts[id] != null && this.texts[id].isEmpty()).toArray();
+    }
+
+    /**
+     * Decodes the vocabulary of the loaded model, must run while it stays loaded
+     * (on the generation lane or in an inference scheduler task).
+     */
+    public static TokenVocabulary load() {
+        String[] texts = new String[LlamaService.getVocabSize()];
+        for (int id = 0; id < texts.length; id++) {
+            texts[id] = TokenDecoder.decodeToken(id);
+        }
+        return new TokenVocabulary(texts, LlamaService.getTokenEOS());
+    }
+
+    public int getSize() {
+        return texts.length;
+    }
+
+    /**
+     * @return decoded text, empty for control tokens, null if never allowed.
+     */
+    public String getText(int id) {
+        return id < 0 || id >= texts.length ? null : texts[id];
+    }
+
+    public int getEos() {
+        return eos;
+    }
+
+    int[] getSorted() {
+        return sorted;
+    }
+
+    int[] getControls() {
+        return controls;
+    }
+
+    private static boolean isEmpty(String text) {
+        return text == null || text.isEmpty();
+    }
+
+}
@@ -0,0 +1,173 @@
+package chat.octet.config;
+
+import chat.octet.api.ModelBuilder;
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.ChatSessionManager;
+import chat.octet.engine.EmbeddingCache;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.InferenceScheduler;
+import chat.octet.engine.LogitsMaskCache;
+import chat.octet.engine.PromptCache;
+import chat.octet.engine.ResponseCache;
+import chat.octet.engine.SessionStore;
+import chat.octet.model.parameters.ModelParameter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.MessageFormat;
+import java.time.Duration;
+
+@Slf4j
+@Configuration
+public class InferenceConfig {
+
+    private static final int MAX_CONTEXT_REPLICAS = 1;
+
+    @Value("${inference.workers:0}")
+    Integer workers;
+
+    @Value("${inference.queue-capacity:64}")
+    Integer queueCapacity;
+
+    @Value("${inference.max-pending-generations:64}")
+    Integer maxPendingGenerations;
+
+    @Value("${inference.stream-buffer-tokens:256}")
+    Integer streamBufferTokens;
+
+    @Value("${inference.stream-stall-timeout:30}")
+    Long streamStallTimeout;
+
+    @Value("${inference.prompt-cache-bytes:16777216}")
+    Long promptCacheBytes;
+
+    @Value("${inference.embedding-cache-bytes:67108864}")
+    Long embeddingCacheBytes;
+
+    @Value("${inference.response-cache-chars:0}")
+    Long responseCacheChars;
+
+    @Value("${inference.response-cache-ttl:600}")
+    Long responseCacheTtl;
+
+    @Value("${inference.response-cache-follower-timeout:120}")
+    Long responseCacheFollowerTimeout;
+
+    @Value("${inference.logits-mask-cache-size:64}")
+    Long logitsMaskCacheSize;
+
+    @Value("${inference.model-memory-budget:0}")
+    Long modelMemoryBudget;
+
+    @Value("${inference.max-resident-models:1}")
+    Integer maxResidentModels;
+
+    @Value("${admission.max-concurrent:0}")
+    Integer maxConcurrent;
+
+    @Value("${admission.max-queue:32}")
+    Integer maxQueue;
+
+    @Value("${admission.queue-timeout:60}")
+    Long queueTimeout;
+
+    @Value("${chat-session.idle-timeout:1800}")
+    Long sessionIdleTimeout;
+
+    @Value("${chat-session.max-chars:4194304}")
+    Long sessionMaxChars;
+
+    @Value("${chat-session.store-dir:}")
+    String sessionStoreDir;
+
+    @Value("${chat-session.store-max-bytes:268435456}")
+    Long sessionStoreMaxBytes;
+
+    @PostConstruct
+    public void init() {
+        ModelBuilder.getInstance().setMemoryBudget(modelMemoryBudget);
+        ModelBuilder.getInstance().setMaxResidentModels(maxResidentModels);
+    }
+
+    @Bean
+    public PromptCache promptCache() {
+        return new PromptCache(promptCacheBytes);
+    }
+
+    @Bean
+    public EmbeddingCache embeddingCache() {
+        return new EmbeddingCache(embeddingCacheBytes);
+    }
+
+    @Bean
+    public ResponseCache responseCache() {
+        return new ResponseCache(responseCacheChars, Duration.ofSeconds(responseCacheTtl), Duration.ofSeconds(responseCacheFollowerTimeout));
+    }
+
+    @Bean
+    public LogitsMaskCache logitsMaskCache() {
+        return new LogitsMaskCache(logitsMaskCacheSize);
+    }
+
+    @Bean(destroyMethod = "close")
+    public GenerationEngine generationEngine() {
+        return new GenerationEngine("llama", replicas(), maxPendingGenerations, streamBufferTokens, Duration.ofSeconds(streamStallTimeout));
+    }
+
+    @Bean
+    public AdmissionController admissionController(GenerationEngine generationEngine) {
+        int size = maxConcurrent != null && maxConcurrent > 0 ? maxConcurrent : generationEngine.getReplicas();
+        return new AdmissionController(size, maxQueue, Duration.ofSeconds(queueTimeout));
+    }
+
+    @Bean(destroyMethod = "close")
+    public ChatSessionManager chatSessionManager(GenerationEngine generationEngine) throws IOException {
+        SessionStore store = StringUtils.isBlank(sessionStoreDir) ? null : new SessionStore(Paths.get(sessionStoreDir), sessionStoreMaxBytes);
+        return new ChatSessionManager(Duration.ofSeconds(sessionIdleTimeout), sessionMaxChars, store, (manager, session) ->
+                generationEngine.execute(() -> {
+                    //the user may have started a new session before this task runs
+                    if (!manager.contains(session.getUser())) {
+                        ModelBuilder.getInstance().getResidentModel(session.getModel()).ifPresent(model -> model.removeChatStatus(session.getUser()));
+                    }
+                    return Boolean.TRUE;
+                }).subscribe(null, e -> log.warn(MessageFormat.format("Unable to remove chat status of user {0}.", session.getUser()), e)));
+    }
+
+    @Bean(destroyMethod = "close")
+    public InferenceScheduler inferenceScheduler() {
+        int size = workers != null && workers > 0 ? workers : defaultWorkers();
+        return new InferenceScheduler(size, queueCapacity);
+    }
+
+    private int replicas() {
+        try {
+            int replicas = ModelBuilder.getInstance().getServingSetting(ModelBuilder.DEFAULT_MODEL_NAME).getReplicas();
+            if (replicas > MAX_CONTEXT_REPLICAS) {
+                log.warn(MessageFormat.format("Model replicas {0} is not supported, llama-java-core binds a single native context, use {1}.", replicas, MAX_CONTEXT_REPLICAS));
+            }
+            return Math.max(1, Math.min(replicas, MAX_CONTEXT_REPLICAS));
+        } catch (Exception e) {
+            log.warn("Unable to read model replicas settings, use a single replica.", e);
+            return 1;
+        }
+    }
+
+    private int defaultWorkers() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        try {
+            ModelParameter modelParams = ModelBuilder.getInstance().getModelSetting(ModelBuilder.DEFAULT_MODEL_NAME);
+            int threads = Math.max(modelParams.getThreads(), modelParams.getThreadsBatch());
+            return Math.max(1, processors / Math.max(1, threads));
+        } catch (Exception e) {
+            log.warn("Unable to read model threads settings, use a single inference worker.", e);
+            return 1;
+        }
+    }
+
+}
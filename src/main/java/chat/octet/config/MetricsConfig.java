@@ -0,0 +1,22 @@
+package chat.octet.config;
+
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.EmbeddingCache;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.PromptCache;
+import chat.octet.engine.ResponseCache;
+import chat.octet.metrics.InferenceMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public InferenceMetrics inferenceMetrics(MeterRegistry meterRegistry, GenerationEngine generationEngine, AdmissionController admissionController,
+                                             PromptCache promptCache, EmbeddingCache embeddingCache, ResponseCache responseCache) {
+        return new InferenceMetrics(meterRegistry, generationEngine, admissionController, promptCache, embeddingCache, responseCache);
+    }
+
+}
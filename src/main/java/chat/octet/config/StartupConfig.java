@@ -0,0 +1,111 @@
+package chat.octet.config;
+
+import chat.octet.api.ModelBuilder;
+import chat.octet.api.SseChunkEncoder;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.PromptCache;
+import chat.octet.exceptions.ServerException;
+import chat.octet.metrics.InferenceMetrics;
+import chat.octet.model.Model;
+import chat.octet.model.beans.Token;
+import chat.octet.model.parameters.GenerateParameter;
+import com.google.common.collect.Lists;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Loads and warms up the models before the application reports ready, application runners
+ * complete before the readiness state turns to ACCEPTING_TRAFFIC.
+ */
+@Slf4j
+@Configuration
+public class StartupConfig {
+
+    @Value("${startup.eager-load:true}")
+    Boolean eagerLoad;
+
+    @Value("${startup.models:}")
+    String[] models;
+
+    @Value("${startup.warmup-prompt:Hello}")
+    String warmupPrompt;
+
+    @Value("${startup.warmup-tokens:8}")
+    Integer warmupTokens;
+
+    @Value("${startup.timeout:600}")
+    Long timeout;
+
+    @Bean
+    public ApplicationRunner modelWarmup(GenerationEngine generationEngine, PromptCache promptCache, InferenceMetrics inferenceMetrics) {
+        return args -> {
+            if (!eagerLoad) {
+                log.info("Eager model loading is disabled, models are loaded on the first request.");
+                return;
+            }
+            List<String> names = Arrays.stream(models).filter(StringUtils::isNotBlank).map(String::trim).collect(Collectors.toCollection(Lists::newArrayList));
+            if (names.isEmpty()) {
+                names.add(ModelBuilder.DEFAULT_MODEL_NAME);
+            }
+            if (names.size() > 1) {
+                log.warn(MessageFormat.format("llama-java-core binds a single native context, models are loaded one by one and only {0} stays resident.",
+                        names.get(names.size() - 1)));
+            }
+            long startTime = System.currentTimeMillis();
+            for (String name : names) {
+                //runs on the decoder thread like any generation
+                generationEngine.execute(() -> {
+                    warmup(name, promptCache, inferenceMetrics);
+                    return Boolean.TRUE;
+                }).block(Duration.ofSeconds(timeout));
+            }
+            long elapsed = System.currentTimeMillis() - startTime;
+            inferenceMetrics.recordStartupPhase("total", ModelBuilder.DEFAULT_MODEL_NAME, elapsed);
+            log.info(MessageFormat.format("Models {0} are ready, elapsed time: {1} ms.", names, elapsed));
+        };
+    }
+
+    public void warmup(String name, PromptCache promptCache, InferenceMetrics inferenceMetrics) {
+        long startTime = System.currentTimeMillis();
+        Model model;
+        try {
+            model = ModelBuilder.getInstance().getModel(name);
+        } catch (Exception e) {
+            throw new ServerException(MessageFormat.format("Unable to load model {0} on startup", name), e);
+        }
+        long loadTime = System.currentTimeMillis() - startTime;
+        inferenceMetrics.recordStartupPhase("load", name, loadTime);
+        if (warmupTokens <= 0) {
+            log.info(MessageFormat.format("Model {0} loaded in {1} ms, warm-up is disabled.", name, loadTime));
+            return;
+        }
+        //fault in the mmap'd weights and exercise the tokenize, decode and SSE encoding paths once
+        startTime = System.currentTimeMillis();
+        promptCache.tokenize(name, warmupPrompt);
+        GenerateParameter generateParams = GenerateParameter.builder().maxNewTokenSize(warmupTokens).build();
+        SseChunkEncoder encoder = new SseChunkEncoder("warmup", name, false);
+        DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+        int tokens = 0;
+        for (Token token : model.generate(generateParams, warmupPrompt)) {
+            DataBufferUtils.release(encoder.encode(bufferFactory, token));
+            tokens++;
+        }
+        long warmupTime = System.currentTimeMillis() - startTime;
+        inferenceMetrics.recordStartupPhase("warmup", name, warmupTime);
+        log.info(MessageFormat.format("Model {0} loaded in {1} ms, warmed up in {2} ms ({3} tokens).", name, loadTime, warmupTime, tokens));
+    }
+
+}
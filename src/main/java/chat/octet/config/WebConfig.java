@@ -1,11 +1,14 @@
 package chat.octet.config;
 
+import chat.octet.engine.AdmissionController;
 import com.google.common.collect.Lists;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.reactive.CorsWebFilter;
 import org.springframework.web.cors.reactive.UrlBasedCorsConfigurationSource;
+import org.springframework.web.server.WebFilter;
+import reactor.util.context.Context;
 
 @Configuration
 public class WebConfig {
@@ -24,4 +27,15 @@ public class WebConfig {
         return new CorsWebFilter(source);
     }
 
+    /**
+     * Releases the admission tickets and runs the cleanups of a request once its response is written or abandoned.
+     */
+    @Bean
+    public WebFilter admissionScopeFilter() {
+        return (exchange, chain) -> {
+            AdmissionController.Scope scope = new AdmissionController.Scope();
+            return chain.filter(exchange).contextWrite(Context.of(AdmissionController.Scope.class, scope)).doFinally(signal -> scope.release());
+        };
+    }
+
 }
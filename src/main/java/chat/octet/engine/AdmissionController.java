@@ -0,0 +1,377 @@
+package chat.octet.engine;
+
+import chat.octet.exceptions.TooManyRequestsException;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Front door of the generation engine. Each model has a bounded wait queue, at most
+ * {@code maxConcurrent} admitted generations, and waiting requests are admitted round-robin
+ * across user ids. Requests that cannot be queued, or wait longer than {@code queueTimeout},
+ * are rejected with a retry-after hint.
+ * <p>
+ * Tickets acquired in a {@link Scope} (bound to each HTTP exchange) are also released when the
+ * exchange completes, so a ticket is not leaked if its response body is never subscribed.
+ * Other per-request cleanups may be registered on the scope with {@link Scope#onRelease}.
+ */
+@Slf4j
+public final class AdmissionController {
+
+    private static final String ANONYMOUS = "anonymous";
+    private static final String EMBEDDINGS = "/embeddings";
+
+    @Getter
+    private final int maxConcurrent;
+    @Getter
+    private final int maxQueue;
+    private final Duration queueTimeout;
+    private final Map<String, ModelQueue> queues = new ConcurrentHashMap<>();
+
+    public AdmissionController(int maxConcurrent, int maxQueue, Duration queueTimeout) {
+        Preconditions.checkArgument(maxConcurrent > 0, "Max concurrent generations must be greater than 0");
+        Preconditions.checkArgument(maxQueue >= 0, "Max queue size cannot be negative");
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.queueTimeout = queueTimeout;
+    }
+
+    public Mono<Ticket> acquire(String model, String user) {
+        return acquire(getQueue(model), user);
+    }
+
+    /**
+     * Admits an embedding request of the model, embeddings have their own queue so they
+     * do not wait for the admission of long generations.
+     */
+    public Mono<Ticket> acquireEmbedding(String model, String user) {
+        return acquire(getQueue(getEmbeddingQueue(model)), user);
+    }
+
+    private Mono<Ticket> acquire(ModelQueue queue, String user) {
+        return Mono.deferContextual(context -> queue.acquire(StringUtils.defaultIfBlank(user, ANONYMOUS))
+                .doOnNext(ticket -> context.<Scope>getOrEmpty(Scope.class).ifPresent(scope -> scope.add(ticket))));
+    }
+
+    /**
+     * Runs the task once the tickets in flight on the model are released, no ticket of the model is
+     * granted meanwhile (requests queue up), e.g. to swap the weights of the model.
+     */
+    public <T> Mono<T> exclusive(String model, Mono<T> task) {
+        List<ModelQueue> models = Arrays.asList(getQueue(model), getQueue(getEmbeddingQueue(model)));
+        return Mono.usingWhen(Mono.fromCallable(() -> {
+            models.forEach(ModelQueue::pause);
+            return models;
+        }), paused -> Flux.fromIterable(paused).concatMap(ModelQueue::drained).then(task),
+                paused -> Mono.fromRunnable(() -> paused.forEach(ModelQueue::resume)));
+    }
+
+    private ModelQueue getQueue(String model) {
+        return queues.computeIfAbsent(model.toLowerCase(Locale.ROOT), ModelQueue::new);
+    }
+
+    public static String getEmbeddingQueue(String model) {
+        return model + EMBEDDINGS;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = Maps.newLinkedHashMap();
+        queues.forEach((name, queue) -> status.put(name, queue.getStatus()));
+        return status;
+    }
+
+    public Map<String, ModelQueue> getQueues() {
+        return Collections.unmodifiableMap(queues);
+    }
+
+    public final class Ticket {
+
+        private final ModelQueue queue;
+        @Getter
+        private final long waitTime;
+        private final long admittedTime;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Ticket(ModelQueue queue, long waitTime) {
+            this.queue = queue;
+            this.waitTime = waitTime;
+            this.admittedTime = System.currentTimeMillis();
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                queue.release(System.currentTimeMillis() - admittedTime);
+            }
+        }
+    }
+
+    /**
+     * Tickets acquired and cleanups registered while serving one request, put in the subscriber context as {@code Scope.class}.
+     */
+    public static final class Scope {
+
+        private final Queue<Runnable> actions = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed;
+
+        private void add(Ticket ticket) {
+            onRelease(ticket::release);
+        }
+
+        /**
+         * Runs the action once the request completes, right away if it already has.
+         */
+        public void onRelease(Runnable action) {
+            actions.add(action);
+            if (closed) {
+                release();
+            }
+        }
+
+        public void release() {
+            closed = true;
+            Runnable action;
+            while ((action = actions.poll()) != null) {
+                action.run();
+            }
+        }
+    }
+
+    private static final class Waiter {
+
+        private final String user;
+        private final MonoSink<Ticket> sink;
+        private final long enqueueTime = System.currentTimeMillis();
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private volatile Ticket ticket;
+
+        private Waiter(String user, MonoSink<Ticket> sink) {
+            this.user = user;
+            this.sink = sink;
+        }
+
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    public final class ModelQueue {
+
+        @Getter
+        private final String model;
+        private final LinkedHashMap<String, Deque<Waiter>> waiting = new LinkedHashMap<>();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder expired = new LongAdder();
+        private final LongAdder totalWaitTime = new LongAdder();
+        private volatile double avgServiceTime = 0d;
+        private final List<MonoSink<Void>> drainers = Lists.newArrayList();
+        private int running;
+        private int queued;
+        private int paused;
+
+        private ModelQueue(String model) {
+            this.model = model;
+        }
+
+        private Mono<Ticket> acquire(String user) {
+            return Mono.create(sink -> {
+                Waiter waiter = new Waiter(user, sink);
+                boolean admit = false;
+                boolean reject = false;
+                synchronized (this) {
+                    if (running < maxConcurrent && queued == 0 && paused == 0) {
+                        running++;
+                        admit = true;
+                    } else if (queued >= maxQueue) {
+                        reject = true;
+                    } else {
+                        waiting.computeIfAbsent(user, key -> new ArrayDeque<>()).addLast(waiter);
+                        queued++;
+                    }
+                }
+                if (admit) {
+                    waiter.claim();
+                    grant(waiter);
+                    return;
+                }
+                if (reject) {
+                    rejected.increment();
+                    sink.error(new TooManyRequestsException(MessageFormat.format("Too many requests, queue of model {0} is full (limit: {1})", model, maxQueue), getRetryAfter()));
+                    return;
+                }
+                sink.onCancel(() -> {
+                    if (waiter.claim()) {
+                        remove(waiter);
+                    } else if (waiter.ticket != null) {
+                        waiter.ticket.release();
+                    }
+                });
+                Schedulers.parallel().schedule(() -> {
+                    if (waiter.claim()) {
+                        remove(waiter);
+                        expired.increment();
+                        sink.error(new TooManyRequestsException(MessageFormat.format("Too many requests, queue wait timeout on model {0} ({1} ms)", model, queueTimeout.toMillis()), getRetryAfter()));
+                    }
+                }, queueTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            });
+        }
+
+        private void grant(Waiter waiter) {
+            long waitTime = System.currentTimeMillis() - waiter.enqueueTime;
+            admitted.increment();
+            totalWaitTime.add(waitTime);
+            waiter.ticket = new Ticket(this, waitTime);
+            waiter.sink.success(waiter.ticket);
+        }
+
+        private synchronized void remove(Waiter waiter) {
+            Deque<Waiter> deque = waiting.get(waiter.user);
+            if (deque != null && deque.remove(waiter)) {
+                queued--;
+                if (deque.isEmpty()) {
+                    waiting.remove(waiter.user);
+                }
+            }
+        }
+
+        private void release(long serviceTime) {
+            avgServiceTime = avgServiceTime == 0d ? serviceTime : avgServiceTime * 0.8d + serviceTime * 0.2d;
+            Waiter next;
+            List<MonoSink<Void>> drained = null;
+            synchronized (this) {
+                next = paused == 0 ? poll() : null;
+                if (next == null) {
+                    running--;
+                    if (running == 0 && !drainers.isEmpty()) {
+                        drained = Lists.newArrayList(drainers);
+                        drainers.clear();
+                    }
+                }
+            }
+            if (next != null) {
+                grant(next);
+            } else if (drained != null) {
+                drained.forEach(MonoSink::success);
+            }
+        }
+
+        private synchronized void pause() {
+            paused++;
+        }
+
+        private void resume() {
+            List<Waiter> granted = Lists.newArrayList();
+            synchronized (this) {
+                paused--;
+                while (paused == 0 && running < maxConcurrent) {
+                    Waiter next = poll();
+                    if (next == null) {
+                        break;
+                    }
+                    running++;
+                    granted.add(next);
+                }
+            }
+            granted.forEach(this::grant);
+        }
+
+        /**
+         * @return completes once no ticket of the model is in flight.
+         */
+        private Mono<Void> drained() {
+            return Mono.create(sink -> {
+                synchronized (this) {
+                    if (running > 0) {
+                        drainers.add(sink);
+                        sink.onCancel(() -> {
+                            synchronized (this) {
+                                drainers.remove(sink);
+                            }
+                        });
+                        return;
+                    }
+                }
+                sink.success();
+            });
+        }
+
+        private Waiter poll() {
+            while (queued > 0) {
+                Iterator<Map.Entry<String, Deque<Waiter>>> iterator = waiting.entrySet().iterator();
+                Map.Entry<String, Deque<Waiter>> entry = iterator.next();
+                iterator.remove();
+                Deque<Waiter> deque = entry.getValue();
+                Waiter waiter = deque.pollFirst();
+                queued--;
+                if (!deque.isEmpty()) {
+                    //move user to the tail, so that other users are served first
+                    waiting.put(entry.getKey(), deque);
+                }
+                if (waiter != null && waiter.claim()) {
+                    return waiter;
+                }
+            }
+            return null;
+        }
+
+        public synchronized int getRunning() {
+            return running;
+        }
+
+        public synchronized int getQueued() {
+            return queued;
+        }
+
+        public synchronized boolean isPaused() {
+            return paused > 0;
+        }
+
+        public double getAverageWaitTime() {
+            long count = admitted.sum();
+            return count == 0 ? 0d : (double) totalWaitTime.sum() / count;
+        }
+
+        public long getRetryAfter() {
+            int depth = getQueued() + 1;
+            return Math.max(1L, (long) Math.ceil(avgServiceTime * depth / maxConcurrent / 1000d));
+        }
+
+        public Map<String, Object> getStatus() {
+            Map<String, Object> status = Maps.newLinkedHashMap();
+            status.put("running", getRunning());
+            status.put("paused", isPaused());
+            status.put("queued", getQueued());
+            status.put("admitted", admitted.sum());
+            status.put("rejected", rejected.sum());
+            status.put("expired", expired.sum());
+            status.put("avg_wait_ms", getAverageWaitTime());
+            status.put("avg_service_ms", avgServiceTime);
+            return status;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package chat.octet.engine;
+
+import com.google.common.collect.Lists;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Conversation already evaluated in the model context of a user.
+ */
+public final class ChatSession {
+
+    @Getter
+    private final String user;
+    @Getter
+    private final String model;
+    //load generation of the model the turns were evaluated by, see ModelBuilder#getLoadGeneration
+    @Getter
+    private final long generation;
+    @Getter
+    private final String system;
+    //system prompt given to the model when the context was (re)built, including folded turns
+    @Getter
+    private final String prompt;
+    private final List<Message> history;
+    //restored from a snapshot, its turns are no longer evaluated in the model context
+    @Getter
+    private final boolean restored;
+    private volatile boolean pending;
+
+    ChatSession(String user, String model, long generation, String system, String prompt, List<Message> history) {
+        this(user, model, generation, system, prompt, history, false);
+    }
+
+    ChatSession(String user, String model, long generation, String system, String prompt, List<Message> history, boolean restored) {
+        this.user = user;
+        this.model = model;
+        this.generation = generation;
+        this.system = system;
+        this.prompt = prompt;
+        this.history = Lists.newArrayList(history);
+        this.restored = restored;
+    }
+
+    ChatSession detach() {
+        return new ChatSession(user, model, generation, system, prompt, history, true);
+    }
+
+    public List<Message> getHistory() {
+        return Collections.unmodifiableList(history);
+    }
+
+    public int getTokens() {
+        return history.stream().mapToInt(Message::getTokens).sum();
+    }
+
+    public int getWeight() {
+        return history.stream().mapToInt(message -> message.getContent().length()).sum() + (prompt == null ? 0 : prompt.length()) + 64;
+    }
+
+    boolean isPending() {
+        return pending;
+    }
+
+    void setPending(boolean pending) {
+        this.pending = pending;
+    }
+
+    void append(Message user, Message assistant) {
+        history.add(user);
+        history.add(assistant);
+    }
+
+    @Getter
+    public static final class Message {
+
+        private final String role;
+        private final String content;
+        private final int tokens;
+
+        public Message(String role, String content, int tokens) {
+            this.role = role;
+            this.content = content;
+            this.tokens = tokens;
+        }
+
+        boolean matches(String role, String content) {
+            return this.role.equalsIgnoreCase(role) && Objects.equals(this.content, content);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package chat.octet.engine;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Keeps a chat session per user, so that a multi-turn request only evaluates the new turn when its
+ * history matches what is already in the context. Otherwise the context is rebuilt from the newest
+ * turns that fit into the history budget (sliding window), older turns are dropped.
+ * <p>
+ * With a {@link SessionStore}, idle or evicted sessions are spilled to disk and restored when the user returns.
+ */
+@Slf4j
+public final class ChatSessionManager {
+
+    public static final String ROLE_USER = "user";
+    public static final String ROLE_ASSISTANT = "assistant";
+
+    private final Cache<String, ChatSession> sessions;
+    private final SessionStore store;
+    private final ExecutorService storeExecutor;
+
+    public ChatSessionManager(Duration idleTimeout, long maxChars, BiConsumer<ChatSessionManager, ChatSession> evictionListener) {
+        this(idleTimeout, maxChars, null, evictionListener);
+    }
+
+    public ChatSessionManager(Duration idleTimeout, long maxChars, SessionStore store, BiConsumer<ChatSessionManager, ChatSession> evictionListener) {
+        Preconditions.checkArgument(maxChars > 0, "Chat session memory cap must be greater than 0");
+        this.store = store;
+        this.storeExecutor = store == null ? null : Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("session-store-%d").setDaemon(true).build());
+        this.sessions = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeout)
+                .maximumWeight(maxChars)
+                .weigher((String key, ChatSession session) -> session.getWeight())
+                .removalListener(notification -> {
+                    ChatSession session = notification.getValue();
+                    if (notification.getCause() == RemovalCause.REPLACED || session == null) {
+                        return;
+                    }
+                    evictionListener.accept(this, session);
+                    if (store != null) {
+                        if (notification.getCause() == RemovalCause.EXPLICIT) {
+                            storeExecutor.execute(() -> store.remove(session.getUser()));
+                        } else if (!session.isPending() && !session.getHistory().isEmpty()) {
+                            storeExecutor.execute(() -> store.save(session));
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param generation load generation of the model, a session evaluated by another load of the model is rebuilt.
+     */
+    public ChatTurn prepare(String model, long generation, String user, String system, List<ChatSession.Message> previous, String input, int historyBudget,
+                            ToIntFunction<String> tokenizer) {
+        int inputTokens = tokenizer.applyAsInt(input);
+        ChatSession session = StringUtils.isBlank(user) ? null : sessions.getIfPresent(user);
+        if (session == null && store != null && StringUtils.isNotBlank(user)) {
+            session = store.load(user);
+        }
+        if (session != null && !session.isRestored() && !session.isPending() && session.getModel().equals(model) && session.getGeneration() == generation
+                && Objects.equals(session.getSystem(), system)
+                && matches(session.getHistory(), previous) && session.getTokens() + tokenizer.applyAsInt(session.getPrompt()) + inputTokens <= historyBudget) {
+            session.setPending(true);
+            return new ChatTurn(session, session.getPrompt(), input, inputTokens, false);
+        }
+        int budget = historyBudget - tokenizer.applyAsInt(system) - inputTokens;
+        List<ChatSession.Message> window = Lists.newArrayList();
+        for (int i = previous.size() - 1; i >= 0; i--) {
+            ChatSession.Message message = previous.get(i);
+            int tokens = message.getTokens() > 0 ? message.getTokens() : knownTokens(session, model, i, message);
+            if (tokens <= 0) {
+                tokens = tokenizer.applyAsInt(message.getContent());
+            }
+            if (tokens > budget) {
+                break;
+            }
+            budget -= tokens;
+            window.add(0, new ChatSession.Message(message.getRole(), message.getContent(), tokens));
+        }
+        if (window.size() < previous.size()) {
+            log.info(MessageFormat.format("Chat history of user {0} exceeds the context, {1} oldest messages are dropped.", user, previous.size() - window.size()));
+        }
+        ChatSession rebuilt = new ChatSession(user, model, generation, system, fold(system, window), window);
+        rebuilt.setPending(true);
+        if (StringUtils.isNotBlank(user)) {
+            sessions.put(user, rebuilt);
+        }
+        return new ChatTurn(rebuilt, rebuilt.getPrompt(), input, inputTokens, true);
+    }
+
+    public void invalidate(String user) {
+        if (StringUtils.isNotBlank(user)) {
+            sessions.invalidate(user);
+        }
+    }
+
+    public void invalidateAll() {
+        sessions.invalidateAll();
+        if (store != null) {
+            storeExecutor.execute(store::clear);
+        }
+    }
+
+    /**
+     * Forces the sessions of a reloaded model to rebuild their context on the next turn.
+     */
+    public void detach(String model) {
+        sessions.asMap().replaceAll((user, session) -> session.getModel().equalsIgnoreCase(model) ? session.detach() : session);
+    }
+
+    public void close() {
+        if (store == null) {
+            return;
+        }
+        storeExecutor.shutdown();
+        try {
+            storeExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sessions.asMap().values().stream()
+                .filter(session -> !session.isPending() && !session.getHistory().isEmpty())
+                .forEach(store::save);
+    }
+
+    public boolean contains(String user) {
+        return StringUtils.isNotBlank(user) && sessions.getIfPresent(user) != null;
+    }
+
+    public long getSize() {
+        return sessions.size();
+    }
+
+    private void commit(ChatTurn turn, String reply, int replyTokens) {
+        ChatSession session = turn.getSession();
+        session.append(new ChatSession.Message(ROLE_USER, turn.getInput(), turn.getInputTokens()), new ChatSession.Message(ROLE_ASSISTANT, reply, replyTokens));
+        session.setPending(false);
+        if (StringUtils.isNotBlank(session.getUser()) && sessions.getIfPresent(session.getUser()) == session) {
+            //re-put to update the weight of the session
+            sessions.put(session.getUser(), session);
+        }
+    }
+
+    //token count of a message already known by the previous session of the user
+    private static int knownTokens(ChatSession session, String model, int index, ChatSession.Message message) {
+        if (session == null || !session.getModel().equals(model) || index >= session.getHistory().size()) {
+            return 0;
+        }
+        ChatSession.Message known = session.getHistory().get(index);
+        return known.matches(message.getRole(), message.getContent()) ? known.getTokens() : 0;
+    }
+
+    private static boolean matches(List<ChatSession.Message> history, List<ChatSession.Message> previous) {
+        if (history.size() != previous.size()) {
+            return false;
+        }
+        for (int i = 0; i < history.size(); i++) {
+            if (!history.get(i).matches(previous.get(i).getRole(), previous.get(i).getContent())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String fold(String system, List<ChatSession.Message> window) {
+        if (window.isEmpty()) {
+            return system;
+        }
+        StringBuilder builder = new StringBuilder(StringUtils.defaultString(system));
+        builder.append(builder.length() > 0 ? "\n\n" : "").append("Conversation history:");
+        for (ChatSession.Message message : window) {
+            builder.append('\n').append(ROLE_USER.equalsIgnoreCase(message.getRole()) ? "User: " : "Assistant: ").append(message.getContent());
+        }
+        return builder.toString();
+    }
+
+    public final class ChatTurn {
+
+        @Getter
+        private final ChatSession session;
+        @Getter
+        private final String system;
+        @Getter
+        private final String input;
+        @Getter
+        private final int inputTokens;
+        //the context must be cleared before this turn is evaluated
+        @Getter
+        private final boolean reset;
+
+        private ChatTurn(ChatSession session, String system, String input, int inputTokens, boolean reset) {
+            this.session = session;
+            this.system = system;
+            this.input = input;
+            this.inputTokens = inputTokens;
+            this.reset = reset;
+        }
+
+        public void complete(String content, int tokens) {
+            commit(this, content, tokens);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package chat.octet.engine;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Content-addressed embedding cache, vectors are kept off-heap in direct buffers and
+ * keyed by the SHA-256 hash of (model, text).
+ */
+public final class EmbeddingCache {
+
+    private final Cache<HashCode, ByteBuffer> cache;
+
+    public EmbeddingCache(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "Embedding cache size must be greater than 0");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((HashCode key, ByteBuffer value) -> value.capacity() + 32)
+                .recordStats()
+                .build();
+    }
+
+    public float[] get(String model, String text) {
+        ByteBuffer buffer = cache.getIfPresent(key(model, text));
+        if (buffer == null) {
+            return null;
+        }
+        float[] embedding = new float[buffer.capacity() / Float.BYTES];
+        buffer.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer().get(embedding);
+        return embedding;
+    }
+
+    public void put(String model, String text, float[] embedding) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(embedding.length * Float.BYTES).order(ByteOrder.nativeOrder());
+        buffer.asFloatBuffer().put(embedding);
+        cache.put(key(model, text), buffer);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    private static HashCode key(String model, String text) {
+        return Hashing.sha256().newHasher()
+                .putString(model, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(text, StandardCharsets.UTF_8)
+                .hash();
+    }
+}
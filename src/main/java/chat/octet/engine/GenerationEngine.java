@@ -0,0 +1,179 @@
+package chat.octet.engine;
+
+import chat.octet.exceptions.InferenceRejectedException;
+import chat.octet.exceptions.ServerException;
+import chat.octet.model.beans.Token;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.Queues;
+
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Owns the decoding loops of the model contexts (one lane per replica). Pending generations
+ * are checked out to a free lane in order as soon as a running one finishes, and tokens are
+ * fanned out to each request through its own bounded sink. A full sink blocks the decoding loop
+ * (backpressure), a client that stops reading for the stall timeout gets its generation cancelled.
+ */
+@Slf4j
+public final class GenerationEngine implements AutoCloseable {
+
+    private static final long STALL_CHECK_INTERVAL = 100;
+
+    @Getter
+    private final String name;
+    @Getter
+    private final int replicas;
+    @Getter
+    private final int maxPending;
+    @Getter
+    private final int bufferSize;
+    private final Duration stallTimeout;
+    private final ThreadPoolExecutor decoder;
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder totalWaitTime = new LongAdder();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    public GenerationEngine(String name, int replicas, int maxPending, int bufferSize, Duration stallTimeout) {
+        Preconditions.checkArgument(replicas > 0, "Replicas must be greater than 0");
+        Preconditions.checkArgument(maxPending > 0, "Max pending generations must be greater than 0");
+        Preconditions.checkArgument(bufferSize > 0, "Stream buffer size must be greater than 0");
+        this.name = name;
+        this.replicas = replicas;
+        this.maxPending = maxPending;
+        this.bufferSize = bufferSize;
+        this.stallTimeout = stallTimeout;
+        this.decoder = new ThreadPoolExecutor(replicas, replicas, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxPending),
+                new ThreadFactoryBuilder().setNameFormat("decoder-" + name + "-%d").setDaemon(true).build());
+        log.info(MessageFormat.format("Generation engine {0} started, replicas: {1}, max pending: {2}.", name, replicas, maxPending));
+    }
+
+    public Flux<Token> generate(Supplier<Iterable<Token>> generation) {
+        return Flux.defer(() -> {
+            Sinks.Many<Token> sink = Sinks.many().unicast().onBackpressureBuffer(Queues.<Token>get(bufferSize).get());
+            //tokens emitted but not yet delivered downstream, including the ones prefetched by publishOn
+            Semaphore space = new Semaphore(bufferSize);
+            AtomicBoolean cancelled = new AtomicBoolean(false);
+            try {
+                submit(() -> {
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    try {
+                        for (Token token : generation.get()) {
+                            if (cancelled.get() || !await(space, cancelled)) {
+                                //the iterator is dropped undrained: the core starts each generate from the chat status
+                                //of its user (or a new one), and the chat turn left pending is rebuilt on the next turn
+                                //of the user, which removes the chat status of the cancelled generation
+                                break;
+                            }
+                            sink.tryEmitNext(token);
+                        }
+                        sink.tryEmitComplete();
+                    } catch (Exception e) {
+                        sink.tryEmitError(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                return Flux.error(rejected());
+            }
+            return sink.asFlux()
+                    .doOnCancel(() -> cancelled.set(true))
+                    .publishOn(Schedulers.parallel(), Math.min(bufferSize, Queues.SMALL_BUFFER_SIZE))
+                    .doOnNext(token -> space.release());
+        });
+    }
+
+    /**
+     * Blocks the decoding loop until the client has room for another token.
+     *
+     * @return false if the generation was cancelled.
+     * @throws ServerException if the client read nothing for the stall timeout.
+     */
+    private boolean await(Semaphore space, AtomicBoolean cancelled) throws InterruptedException {
+        long deadline = System.nanoTime() + stallTimeout.toNanos();
+        while (!space.tryAcquire(STALL_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (cancelled.get()) {
+                return false;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new ServerException(MessageFormat.format("Client stopped reading for {0} seconds, generation cancelled on engine {1}", stallTimeout.getSeconds(), name));
+            }
+        }
+        return true;
+    }
+
+    public <T> Mono<T> execute(Callable<T> task) {
+        return Mono.<T>create(sink -> {
+            try {
+                submit(() -> {
+                    try {
+                        sink.success(task.call());
+                    } catch (Exception e) {
+                        sink.error(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                sink.error(rejected());
+            }
+        }).publishOn(Schedulers.parallel());
+    }
+
+    private void submit(Runnable task) {
+        long submitTime = System.currentTimeMillis();
+        decoder.execute(() -> {
+            long waitTime = System.currentTimeMillis() - submitTime;
+            checkouts.increment();
+            totalWaitTime.add(waitTime);
+            maxWaitTime.accumulateAndGet(waitTime, Math::max);
+            task.run();
+        });
+    }
+
+    public int getPending() {
+        return decoder.getQueue().size();
+    }
+
+    public int getActive() {
+        return decoder.getActiveCount();
+    }
+
+    public double getOccupancy() {
+        return (double) decoder.getActiveCount() / replicas;
+    }
+
+    public double getAverageWaitTime() {
+        long count = checkouts.sum();
+        return count == 0 ? 0d : (double) totalWaitTime.sum() / count;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    private InferenceRejectedException rejected() {
+        return new InferenceRejectedException(MessageFormat.format("Server is busy, too many pending generations on engine {0} (limit: {1})", name, maxPending));
+    }
+
+    @Override
+    public void close() {
+        decoder.shutdownNow();
+    }
+}
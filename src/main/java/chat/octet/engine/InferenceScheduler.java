@@ -0,0 +1,95 @@
+package chat.octet.engine;
+
+import chat.octet.exceptions.InferenceRejectedException;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.text.MessageFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Runs blocking calls that do not touch the model context (e.g. tokenize) on a bounded
+ * worker pool, so that reactor-netty event loops only perform HTTP I/O. Admission is limited
+ * to {@code workers + queueCapacity} tasks, any further task is rejected immediately.
+ * <p>
+ * Tasks still call into the loaded model (e.g. its tokenizer), model loads and unloads run
+ * {@link #exclusive(Supplier)} once the running tasks are done, new tasks wait for them.
+ */
+@Slf4j
+public final class InferenceScheduler implements AutoCloseable {
+
+    @Getter
+    private final int workers;
+    @Getter
+    private final int queueCapacity;
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    private final Scheduler scheduler;
+    private final ReentrantReadWriteLock paused = new ReentrantReadWriteLock(true);
+
+    public InferenceScheduler(int workers, int queueCapacity) {
+        Preconditions.checkArgument(workers > 0, "Inference workers must be greater than 0");
+        Preconditions.checkArgument(queueCapacity >= 0, "Inference queue capacity cannot be negative");
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.permits = new Semaphore(workers + queueCapacity);
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("inference-%d").setDaemon(true).build());
+        this.scheduler = Schedulers.fromExecutorService(executor, "inference");
+        log.info(MessageFormat.format("Inference scheduler started, workers: {0}, queue capacity: {1}.", workers, queueCapacity));
+    }
+
+    public <T> Mono<T> execute(Callable<T> task) {
+        return Mono.defer(() -> {
+            if (!permits.tryAcquire()) {
+                return Mono.error(rejected());
+            }
+            return Mono.fromCallable(() -> {
+                paused.readLock().lock();
+                try {
+                    return task.call();
+                } finally {
+                    paused.readLock().unlock();
+                }
+            }).subscribeOn(scheduler).doFinally(signal -> permits.release());
+        });
+    }
+
+    /**
+     * Runs the task on the calling thread while no scheduler task is running.
+     */
+    public <T> T exclusive(Supplier<T> task) {
+        paused.writeLock().lock();
+        try {
+            return task.get();
+        } finally {
+            paused.writeLock().unlock();
+        }
+    }
+
+    public int getPending() {
+        return workers + queueCapacity - permits.availablePermits();
+    }
+
+    private InferenceRejectedException rejected() {
+        return new InferenceRejectedException(MessageFormat.format("Server is busy, too many pending inference tasks (limit: {0})", workers + queueCapacity));
+    }
+
+    @Override
+    public void close() {
+        scheduler.dispose();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,99 @@
+package chat.octet.engine;
+
+import chat.octet.components.GrammarAutomaton;
+import chat.octet.components.TokenGrammar;
+import chat.octet.components.TokenVocabulary;
+import chat.octet.exceptions.ServerException;
+import chat.octet.model.LlamaService;
+import chat.octet.model.components.processor.LogitsProcessor;
+import chat.octet.model.components.processor.impl.CustomBiasLogitsProcessor;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Per model cache of the vocabulary-sized logits masks: compiled grammars with their per-state
+ * token masks, and logit bias processors, so repeated schemas and biases are not rebuilt per request.
+ * Must be cleared when the weights of a model change.
+ */
+public final class LogitsMaskCache {
+
+    private static final int MAX_VOCABULARIES = 4;
+
+    private final Cache<String, TokenVocabulary> vocabularies;
+    private final Cache<String, TokenGrammar> grammars;
+    private final Cache<String, LogitsProcessor> biases;
+
+    public LogitsMaskCache(long maxEntries) {
+        Preconditions.checkArgument(maxEntries > 0, "Logits mask cache size must be greater than 0");
+        this.vocabularies = CacheBuilder.newBuilder().maximumSize(MAX_VOCABULARIES).build();
+        this.grammars = CacheBuilder.newBuilder().maximumSize(maxEntries).recordStats().build();
+        this.biases = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /**
+     * @param grammar regular grammar, compiled on the first request and validated without the model,
+     *                its masks are built by {@link TokenGrammar#precompute(int)}.
+     */
+    public TokenGrammar getGrammar(String model, String grammar) {
+        return get(grammars, model + '\0' + grammar,
+                () -> new TokenGrammar(GrammarAutomaton.compile(grammar), Suppliers.memoize(() -> getVocabulary(model))));
+    }
+
+    /**
+     * @return bias processor resolved on its first step, on the generation lane with the model loaded,
+     * so that it is sized to the vocabulary of the model.
+     */
+    public LogitsProcessor getBias(String model, Map<Integer, String> logitBias) {
+        TreeMap<Integer, String> sorted = new TreeMap<>(logitBias);
+        String key = model + '\0' + sorted;
+        return new LogitsProcessor() {
+            private LogitsProcessor bias;
+
+            @Override
+            public float[] processor(int[] inputTokenIds, float[] scores, Object... args) {
+                if (bias == null) {
+                    bias = get(biases, key, () -> new CustomBiasLogitsProcessor(sorted, LlamaService.getVocabSize()));
+                }
+                return bias.processor(inputTokenIds, scores, args);
+            }
+        };
+    }
+
+    private TokenVocabulary getVocabulary(String model) {
+        return get(vocabularies, model, TokenVocabulary::load);
+    }
+
+    private static <V> V get(Cache<String, V> cache, String key, Callable<V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof ServerException) {
+                throw (ServerException) e.getCause();
+            }
+            throw new ServerException("Build logits mask error", e.getCause());
+        }
+    }
+
+    public CacheStats getStats() {
+        return grammars.stats();
+    }
+
+    public long getSize() {
+        return grammars.size() + biases.size();
+    }
+
+    public void clear() {
+        vocabularies.invalidateAll();
+        grammars.invalidateAll();
+        biases.invalidateAll();
+    }
+}
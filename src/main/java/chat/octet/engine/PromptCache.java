@@ -0,0 +1,66 @@
+package chat.octet.engine;
+
+import chat.octet.exceptions.ServerException;
+import chat.octet.model.LlamaService;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * LRU cache of tokenized prompt prefixes (e.g. system prompts) per model, bounded by an
+ * approximate memory budget in bytes. The model only accepts text, the cached tokens serve the
+ * prompt length check and the tokenizer endpoints. Must be cleared when the weights of a model change.
+ */
+public final class PromptCache {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final Cache<String, int[]> cache;
+
+    public PromptCache(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "Prompt cache size must be greater than 0");
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, int[] tokens) -> key.length() * 2 + tokens.length * 4)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Tokenizes with the loaded model, which must be the given one.
+     */
+    public int[] tokenize(String model, String text) {
+        if (StringUtils.isEmpty(text)) {
+            return EMPTY;
+        }
+        try {
+            return cache.get(model + '\0' + text, () -> LlamaService.tokenize(text, false, true));
+        } catch (ExecutionException e) {
+            throw new ServerException("Tokenize prompt error", e.getCause());
+        }
+    }
+
+    /**
+     * Counts the tokens of a cached prefix and an uncached suffix (e.g. the user input, rarely repeated).
+     */
+    public int countTokens(String model, String prefix, String suffix) {
+        int prefixTokens = tokenize(model, prefix).length;
+        return StringUtils.isEmpty(suffix) ? prefixTokens : prefixTokens + LlamaService.tokenize(suffix, false, true).length;
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,118 @@
+package chat.octet.engine;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of deterministic completions keyed by the hash of (model, prompt, sampling parameters),
+ * identical requests in flight are coalesced onto the first one (singleflight). A follower waits for
+ * the leading request at most the follower timeout, then generates by itself.
+ */
+public final class ResponseCache {
+
+    private final boolean enabled;
+    private final Cache<HashCode, CachedResponse> cache;
+    private final ConcurrentMap<HashCode, Sinks.One<CachedResponse>> inflight = new ConcurrentHashMap<>();
+    private final Duration followerTimeout;
+
+    public ResponseCache(long maxChars, Duration ttl, Duration followerTimeout) {
+        this.enabled = maxChars > 0;
+        this.followerTimeout = followerTimeout;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(maxChars, 1))
+                .weigher((HashCode key, CachedResponse response) -> response.getWeight())
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public CachedResponse get(HashCode key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Joins the request in flight with the same key.
+     *
+     * @return response of the leading request (empty if it fails or times out), or null when the caller leads
+     * and must {@link #complete} or {@link #abandon} the key.
+     */
+    public Mono<CachedResponse> join(HashCode key) {
+        Sinks.One<CachedResponse> leader = inflight.putIfAbsent(key, Sinks.one());
+        return leader == null ? null : leader.asMono().timeout(followerTimeout, Mono.empty());
+    }
+
+    /**
+     * @return action abandoning the key while it is still led by the caller, e.g. once the exchange of the
+     * leading request completes without its response body being subscribed.
+     */
+    public Runnable abandoner(HashCode key) {
+        Sinks.One<CachedResponse> leader = inflight.get(key);
+        return () -> {
+            if (leader != null && inflight.remove(key, leader)) {
+                leader.tryEmitEmpty();
+            }
+        };
+    }
+
+    public void complete(HashCode key, CachedResponse response) {
+        cache.put(key, response);
+        Sinks.One<CachedResponse> leader = inflight.remove(key);
+        if (leader != null) {
+            leader.tryEmitValue(response);
+        }
+    }
+
+    public void abandon(HashCode key) {
+        Sinks.One<CachedResponse> leader = inflight.remove(key);
+        if (leader != null) {
+            leader.tryEmitEmpty();
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public static final class CachedResponse {
+
+        @Getter
+        private final String model;
+        //content and finish reason of each choice
+        @Getter
+        private final List<Pair<String, String>> choices;
+
+        public CachedResponse(String model, List<Pair<String, String>> choices) {
+            this.model = model;
+            this.choices = ImmutableList.copyOf(choices);
+        }
+
+        int getWeight() {
+            return choices.stream().mapToInt(choice -> StringUtils.length(choice.getLeft()) + 16).sum() + 64;
+        }
+    }
+}
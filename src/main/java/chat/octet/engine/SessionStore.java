@@ -0,0 +1,191 @@
+package chat.octet.engine;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Size-bounded on-disk store of chat sessions, one snapshot file per user, read back with memory-mapped I/O.
+ * <p>
+ * Snapshot format (big-endian): magic, version, user, model, system, prompt, message count,
+ * then role, token count and content of each message. Strings are length-prefixed UTF-8, -1 for null.
+ */
+@Slf4j
+public final class SessionStore {
+
+    private static final int MAGIC = 0x4F435353;
+    private static final byte VERSION = 1;
+    private static final String SUFFIX = ".session";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public SessionStore(Path directory, long maxBytes) throws IOException {
+        Preconditions.checkArgument(maxBytes > 0, "Session store size must be greater than 0");
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void save(ChatSession session) {
+        Path file = file(session.getUser());
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        try {
+            Files.write(temp, encode(session));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            trim();
+        } catch (IOException e) {
+            log.warn(MessageFormat.format("Unable to save chat session of user {0}.", session.getUser()), e);
+            delete(temp);
+        }
+    }
+
+    public synchronized ChatSession load(String user) {
+        Path file = file(user);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, user);
+        } catch (Exception e) {
+            log.warn(MessageFormat.format("Unable to load chat session of user {0}, snapshot is dropped.", user), e);
+            return null;
+        } finally {
+            //the session lives in memory again and is saved on its next eviction
+            delete(file);
+        }
+    }
+
+    public synchronized void remove(String user) {
+        delete(file(user));
+    }
+
+    public synchronized void clear() {
+        snapshots().forEach(SessionStore::delete);
+    }
+
+    public synchronized long getSize() {
+        return snapshots().size();
+    }
+
+    private Path file(String user) {
+        return directory.resolve(Hashing.sha256().hashString(user, StandardCharsets.UTF_8) + SUFFIX);
+    }
+
+    private List<Path> snapshots() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        } catch (IOException e) {
+            log.warn("Unable to list chat session snapshots.", e);
+            return Lists.newArrayList();
+        }
+    }
+
+    private void trim() throws IOException {
+        List<Path> files = snapshots();
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        files.sort(Comparator.comparingLong(SessionStore::lastModified));
+        for (Path file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= Files.size(file);
+            delete(file);
+        }
+    }
+
+    private static byte[] encode(ChatSession session) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(session.getWeight() * 2);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        writeString(output, session.getUser());
+        writeString(output, session.getModel());
+        writeString(output, session.getSystem());
+        writeString(output, session.getPrompt());
+        output.writeInt(session.getHistory().size());
+        for (ChatSession.Message message : session.getHistory()) {
+            writeString(output, message.getRole());
+            output.writeInt(message.getTokens());
+            writeString(output, message.getContent());
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ChatSession decode(ByteBuffer buffer, String user) {
+        Preconditions.checkState(buffer.getInt() == MAGIC && buffer.get() == VERSION, "Invalid chat session snapshot");
+        Preconditions.checkState(user.equals(readString(buffer)), "Chat session snapshot belongs to another user");
+        String model = readString(buffer);
+        String system = readString(buffer);
+        String prompt = readString(buffer);
+        int size = buffer.getInt();
+        List<ChatSession.Message> history = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            String role = readString(buffer);
+            int tokens = buffer.getInt();
+            history.add(new ChatSession.Message(role, readString(buffer), tokens));
+        }
+        return new ChatSession(user, model, 0L, system, prompt, history, true);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn(MessageFormat.format("Unable to delete chat session snapshot {0}.", file), e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package chat.octet.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class InferenceRejectedException extends ServerException {
+
+    public InferenceRejectedException(String message) {
+        super(message);
+    }
+}
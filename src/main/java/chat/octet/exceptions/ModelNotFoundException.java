@@ -0,0 +1,12 @@
+package chat.octet.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.NOT_FOUND)
+public class ModelNotFoundException extends ServerException {
+
+    public ModelNotFoundException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,67 @@
+package chat.octet.metrics;
+
+import io.micrometer.core.instrument.Tags;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the timeline of a single generation, tokens are reported from one thread at a time.
+ */
+public final class GenerationRecorder {
+
+    private final InferenceMetrics metrics;
+    private final Tags tags;
+    private final AtomicInteger active;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final long startTime;
+    private long firstTokenTime;
+    private long lastTokenTime;
+    private int tokens;
+    private int promptTokens;
+
+    GenerationRecorder(InferenceMetrics metrics, Tags tags, AtomicInteger active) {
+        this.metrics = metrics;
+        this.tags = tags;
+        this.active = active;
+        this.startTime = System.nanoTime();
+        active.incrementAndGet();
+    }
+
+    public void onPrompt(int promptTokens) {
+        this.promptTokens = promptTokens;
+    }
+
+    public void onToken() {
+        long now = System.nanoTime();
+        if (tokens == 0) {
+            firstTokenTime = now;
+            metrics.recordFirstToken(tags, now - startTime, promptTokens);
+        } else {
+            metrics.recordInterToken(tags, now - lastTokenTime);
+        }
+        lastTokenTime = now;
+        tokens++;
+    }
+
+    public void onComplete() {
+        finish(false);
+    }
+
+    public void onCancel(int savedTokens) {
+        if (finish(true)) {
+            metrics.recordCancelledTokensSaved(tags, savedTokens);
+        }
+    }
+
+    private boolean finish(boolean cancelled) {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        active.decrementAndGet();
+        long now = System.nanoTime();
+        long firstToken = tokens > 0 ? firstTokenTime - startTime : now - startTime;
+        metrics.recordGeneration(tags, now - startTime, firstToken, tokens, cancelled);
+        return true;
+    }
+}
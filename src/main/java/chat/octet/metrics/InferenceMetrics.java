@@ -0,0 +1,99 @@
+package chat.octet.metrics;
+
+import chat.octet.engine.AdmissionController;
+import chat.octet.engine.EmbeddingCache;
+import chat.octet.engine.GenerationEngine;
+import chat.octet.engine.PromptCache;
+import chat.octet.engine.ResponseCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class InferenceMetrics {
+
+    private final MeterRegistry registry;
+    private final AdmissionController admissionController;
+    private final Map<Tags, AtomicInteger> activeGenerations = new ConcurrentHashMap<>();
+    private final Set<String> queueGauges = ConcurrentHashMap.newKeySet();
+
+    public InferenceMetrics(MeterRegistry registry, GenerationEngine generationEngine, AdmissionController admissionController, PromptCache promptCache,
+                            EmbeddingCache embeddingCache, ResponseCache responseCache) {
+        this.registry = registry;
+        this.admissionController = admissionController;
+        Gauge.builder("llama.engine.pending", generationEngine, GenerationEngine::getPending).register(registry);
+        Gauge.builder("llama.engine.active", generationEngine, GenerationEngine::getActive).register(registry);
+        Gauge.builder("llama.engine.occupancy", generationEngine, GenerationEngine::getOccupancy).register(registry);
+        Gauge.builder("llama.prompt.cache.size", promptCache, PromptCache::getSize).register(registry);
+        Gauge.builder("llama.prompt.cache.hit.rate", promptCache, cache -> cache.getStats().hitRate()).register(registry);
+        Gauge.builder("llama.embedding.cache.size", embeddingCache, EmbeddingCache::getSize).register(registry);
+        Gauge.builder("llama.embedding.cache.hit.rate", embeddingCache, cache -> cache.getStats().hitRate()).register(registry);
+        Gauge.builder("llama.response.cache.size", responseCache, ResponseCache::getSize).register(registry);
+        Gauge.builder("llama.response.cache.hit.rate", responseCache, cache -> cache.getStats().hitRate()).register(registry);
+    }
+
+    public GenerationRecorder start(String model, String endpoint) {
+        Tags tags = Tags.of("model", model, "endpoint", endpoint);
+        AtomicInteger active = activeGenerations.computeIfAbsent(tags, key -> registry.gauge("llama.generations.active", key, new AtomicInteger()));
+        return new GenerationRecorder(this, tags, active);
+    }
+
+    public void recordQueueWait(String model, long waitTime) {
+        if (queueGauges.add(model)) {
+            AdmissionController.ModelQueue queue = admissionController.getQueues().get(model.toLowerCase(Locale.ROOT));
+            if (queue != null) {
+                Gauge.builder("llama.admission.queued", queue, AdmissionController.ModelQueue::getQueued).tags("model", model).register(registry);
+                Gauge.builder("llama.admission.running", queue, AdmissionController.ModelQueue::getRunning).tags("model", model).register(registry);
+            }
+        }
+        Timer.builder("llama.admission.wait").tags("model", model).publishPercentileHistogram().register(registry).record(waitTime, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordLatency(String endpoint, long startNanos) {
+        Timer.builder("llama.request.latency").tags("endpoint", endpoint).publishPercentileHistogram().register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordStartupPhase(String phase, String model, long elapsed) {
+        Timer.builder("llama.startup.phase").tags("phase", phase, "model", model).register(registry).record(elapsed, TimeUnit.MILLISECONDS);
+    }
+
+    void recordFirstToken(Tags tags, long nanos, int promptTokens) {
+        Timer.builder("llama.generation.ttft").tags(tags).publishPercentileHistogram().register(registry).record(nanos, TimeUnit.NANOSECONDS);
+        if (promptTokens > 0 && nanos > 0) {
+            DistributionSummary.builder("llama.prompt.eval.tokens.per.second").tags(tags).register(registry)
+                    .record(promptTokens / (nanos / 1e9d));
+        }
+    }
+
+    void recordInterToken(Tags tags, long nanos) {
+        Timer.builder("llama.generation.inter.token").tags(tags).publishPercentileHistogram().register(registry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordGeneration(Tags tags, long nanos, long firstTokenNanos, int tokens, boolean cancelled) {
+        Timer.builder("llama.generation.duration").tags(tags).tag("status", cancelled ? "cancelled" : "completed")
+                .publishPercentileHistogram().register(registry).record(nanos, TimeUnit.NANOSECONDS);
+        Counter.builder("llama.generation.tokens").tags(tags).register(registry).increment(tokens);
+        long decodeNanos = nanos - firstTokenNanos;
+        if (tokens > 1 && decodeNanos > 0) {
+            DistributionSummary.builder("llama.generation.tokens.per.second").tags(tags).register(registry)
+                    .record((tokens - 1) / (decodeNanos / 1e9d));
+        }
+        if (cancelled) {
+            Counter.builder("llama.generations.cancelled").tags(tags).register(registry).increment();
+        }
+    }
+
+    void recordCancelledTokensSaved(Tags tags, int tokens) {
+        Counter.builder("llama.generation.cancelled.tokens.saved").tags(tags).register(registry).increment(tokens);
+    }
+}
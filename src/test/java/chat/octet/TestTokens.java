@@ -0,0 +1,44 @@
+package chat.octet;
+
+import chat.octet.model.beans.Token;
+import chat.octet.model.enums.FinishReason;
+import org.objenesis.ObjenesisStd;
+
+import java.lang.reflect.Field;
+
+/**
+ * Tokens are only created by the model, test tokens are instantiated without a constructor and
+ * their id, text and finish reason fields are set by name.
+ */
+public final class TestTokens {
+
+    private TestTokens() {
+    }
+
+    public static Token token(int id, String text) {
+        return token(id, text, FinishReason.NONE);
+    }
+
+    public static Token finished(FinishReason finishReason) {
+        return token(-1, null, finishReason);
+    }
+
+    public static Token token(int id, String text, FinishReason finishReason) {
+        Token token = new ObjenesisStd().newInstance(Token.class);
+        set(token, "id", id);
+        set(token, "text", text);
+        set(token, "finishReason", finishReason);
+        return token;
+    }
+
+    private static void set(Token token, String name, Object value) {
+        try {
+            Field field = Token.class.getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(token, value);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to set field " + name + " of " + Token.class.getName(), e);
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package chat.octet.api;
+
+import chat.octet.api.model.TokenLogprob;
+import chat.octet.components.StopSequenceFilter;
+import chat.octet.model.beans.Token;
+import chat.octet.model.enums.FinishReason;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static chat.octet.TestTokens.finished;
+import static chat.octet.TestTokens.token;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class BinaryTokenEncoderTest {
+
+    private final DefaultDataBufferFactory bufferFactory = new DefaultDataBufferFactory();
+
+    @Test
+    void tokenFrame() {
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(Token::getText, null);
+        ByteBuffer frame = read(encoder.encode(bufferFactory, token(0x01020304, "héllo")));
+        assertEquals(BinaryTokenEncoder.TOKEN, frame.get());
+        assertEquals(0, frame.get());
+        assertEquals(0x01020304, frame.getInt());
+        assertEquals("héllo", readString(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void littleEndianLayout() {
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(Token::getText, null);
+        DataBuffer buffer = encoder.encode(bufferFactory, token(0x01020304, "a"));
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        assertEquals("[0, 0, 4, 3, 2, 1, 1, 0, 97]", Arrays.toString(bytes));
+    }
+
+    @Test
+    void tokenLogprobFrame() {
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(Token::getText, token -> new TokenLogprob(token.getText(), -0.5f, null));
+        ByteBuffer frame = read(encoder.encode(bufferFactory, token(42, "x")));
+        assertEquals(BinaryTokenEncoder.TOKEN_LOGPROB, frame.get());
+        assertEquals(0, frame.get());
+        assertEquals(42, frame.getInt());
+        assertEquals(-0.5f, frame.getFloat());
+        assertEquals("x", readString(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void finishFrameAdvancesTheChoice() {
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(token -> token.getFinishReason().isFinished() ? "" : token.getText(), null);
+        ByteBuffer frames = read(encoder.encode(bufferFactory, Lists.newArrayList(
+                token(1, "a"), finished(FinishReason.LENGTH), token(2, "b"), finished(FinishReason.FINISHED))));
+        assertToken(frames, 0, 1, "a");
+        assertFinish(frames, 0, FinishReason.LENGTH);
+        assertToken(frames, 1, 2, "b");
+        assertFinish(frames, 1, FinishReason.FINISHED);
+        assertFalse(frames.hasRemaining());
+    }
+
+    @Test
+    void heldBackTextIsFlushedBeforeFinish() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(filter, null);
+        ByteBuffer frames = read(encoder.encode(bufferFactory, Lists.newArrayList(token(7, "ok</"), finished(FinishReason.LENGTH))));
+        assertToken(frames, 0, 7, "ok");
+        assertToken(frames, 0, -1, "</");
+        assertFinish(frames, 0, FinishReason.LENGTH);
+        assertFalse(frames.hasRemaining());
+    }
+
+    @Test
+    void matchedStopSequenceIsNotSent() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        BinaryTokenEncoder encoder = new BinaryTokenEncoder(filter, null);
+        ByteBuffer frames = read(encoder.encode(bufferFactory, Lists.newArrayList(token(7, "ok</"), token(8, "s>"), finished(FinishReason.STOP))));
+        assertToken(frames, 0, 7, "ok");
+        assertToken(frames, 0, 8, "");
+        assertFinish(frames, 0, FinishReason.STOP);
+        assertFalse(frames.hasRemaining());
+    }
+
+    private static void assertToken(ByteBuffer frames, int choice, int id, String text) {
+        assertEquals(BinaryTokenEncoder.TOKEN, frames.get());
+        assertEquals(choice, frames.get());
+        assertEquals(id, frames.getInt());
+        assertEquals(text, readString(frames));
+    }
+
+    private static void assertFinish(ByteBuffer frames, int choice, FinishReason finishReason) {
+        assertEquals(BinaryTokenEncoder.FINISH, frames.get());
+        assertEquals(choice, frames.get());
+        assertEquals(finishReason.name(), readString(frames));
+    }
+
+    private static ByteBuffer read(DataBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String readString(ByteBuffer frames) {
+        byte[] bytes = new byte[frames.getShort() & 0xFFFF];
+        frames.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,132 @@
+package chat.octet.components;
+
+import chat.octet.exceptions.ServerException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GrammarAutomatonTest {
+
+    @Test
+    void literalsClassesAndAlternation() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("(cat|dog)s?-[0-9a-f]\\d\\.");
+        assertTrue(matches(automaton, "cat-a1."));
+        assertTrue(matches(automaton, "dogs-07."));
+        assertFalse(matches(automaton, "cow-a1."));
+        assertFalse(matches(automaton, "cat-g1."));
+        assertFalse(matches(automaton, "cat-a1x"));
+    }
+
+    @Test
+    void wholeOutputMustMatch() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("^abc$");
+        assertTrue(matches(automaton, "abc"));
+        assertFalse(matches(automaton, "ab"));
+        assertFalse(matches(automaton, "abcd"));
+    }
+
+    @Test
+    void negatedClassesAndEscapes() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("[^\"\\\\]+\\x21\\u00e9");
+        assertTrue(matches(automaton, "hi!é"));
+        assertFalse(matches(automaton, "h\"i!é"));
+        assertTrue(matches(GrammarAutomaton.compile("."), "é"));
+        assertFalse(matches(GrammarAutomaton.compile("."), "\n"));
+    }
+
+    @Test
+    void repetitionBounds() {
+        GrammarAutomaton range = GrammarAutomaton.compile("a{2,3}");
+        assertFalse(matches(range, "a"));
+        assertTrue(matches(range, "aa"));
+        assertTrue(matches(range, "aaa"));
+        assertFalse(matches(range, "aaaa"));
+
+        GrammarAutomaton exact = GrammarAutomaton.compile("(ab){2}");
+        assertTrue(matches(exact, "abab"));
+        assertFalse(matches(exact, "ab"));
+        assertFalse(matches(exact, "ababab"));
+
+        GrammarAutomaton atLeast = GrammarAutomaton.compile("a{2,}");
+        assertFalse(matches(atLeast, "a"));
+        assertTrue(matches(atLeast, "aaaaaaaa"));
+
+        GrammarAutomaton optional = GrammarAutomaton.compile("x*y+z?");
+        assertTrue(matches(optional, "y"));
+        assertTrue(matches(optional, "xxyyz"));
+        assertFalse(matches(optional, "xz"));
+        //lazy and possessive forms match the same language
+        assertTrue(matches(GrammarAutomaton.compile("a+?b*+"), "aab"));
+    }
+
+    @Test
+    void acceptingAndTerminalStates() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("ab|a+");
+        int start = automaton.getStart();
+        assertFalse(automaton.isAccepting(start));
+        assertFalse(automaton.isTerminal(start));
+
+        int a = automaton.step(start, 'a');
+        assertTrue(automaton.isAccepting(a));
+        assertFalse(automaton.isTerminal(a));
+
+        int ab = automaton.step(a, 'b');
+        assertTrue(automaton.isAccepting(ab));
+        assertTrue(automaton.isTerminal(ab));
+
+        int dead = automaton.step(ab, 'b');
+        assertEquals(GrammarAutomaton.DEAD, dead);
+        assertFalse(automaton.isAccepting(dead));
+        assertTrue(automaton.isTerminal(dead));
+        assertEquals(GrammarAutomaton.DEAD, automaton.step(dead, 'a'));
+    }
+
+    @Test
+    void statesAreBuiltOnce() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("[ab]*");
+        int state = automaton.getStart();
+        for (char c : "abba".toCharArray()) {
+            state = automaton.step(state, c);
+        }
+        int count = automaton.getStateCount();
+        assertEquals(state, automaton.step(automaton.step(automaton.getStart(), 'a'), 'b'));
+        assertEquals(count, automaton.getStateCount());
+    }
+
+    @Test
+    void frozenAutomatonOnlyFollowsBuiltTransitions() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("a|b");
+        int a = automaton.step(automaton.getStart(), 'a');
+        automaton.freeze();
+        assertEquals(a, automaton.step(automaton.getStart(), 'a'));
+        assertEquals(GrammarAutomaton.DEAD, automaton.step(automaton.getStart(), 'b'));
+    }
+
+    @Test
+    void parseErrors() {
+        for (String pattern : new String[]{"(ab", "ab)", "*a", "a|+", "[abc", "a{3,2}", "a{300}", "a{1234567}",
+                "\\q", "a\\", "[z-a]", "\\x4", "\\uZZZZ"}) {
+            ServerException e = assertThrows(ServerException.class, () -> GrammarAutomaton.compile(pattern), pattern);
+            assertTrue(e.getMessage().startsWith("Invalid grammar: "), e.getMessage());
+        }
+    }
+
+    @Test
+    void literalBraceIsNotARepetition() {
+        GrammarAutomaton automaton = GrammarAutomaton.compile("\\{x{1}\\}");
+        assertTrue(matches(automaton, "{x}"));
+        assertTrue(matches(GrammarAutomaton.compile("a{b"), "a{b"));
+    }
+
+    static boolean matches(GrammarAutomaton automaton, String text) {
+        int state = automaton.getStart();
+        for (int i = 0; i < text.length() && state >= 0; i++) {
+            state = automaton.step(state, text.charAt(i));
+        }
+        return automaton.isAccepting(state);
+    }
+
+}
@@ -0,0 +1,116 @@
+package chat.octet.components;
+
+import chat.octet.exceptions.ServerException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static chat.octet.components.GrammarAutomatonTest.matches;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonSchemaGrammarTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    void objectWithRequiredAndOptionalProperties() throws IOException {
+        GrammarAutomaton automaton = compile("{\"type\":\"object\",\"properties\":{\"name\":{\"type\":\"string\"},"
+                + "\"age\":{\"type\":\"integer\"}},\"required\":[\"name\"]}");
+        assertTrue(matches(automaton, "{\"name\":\"Ada\"}"));
+        assertTrue(matches(automaton, " { \"name\" : \"A\\\"da\", \"age\": 36 }\n"));
+        assertFalse(matches(automaton, "{\"age\":36}"));
+        assertFalse(matches(automaton, "{\"name\":1}"));
+        assertFalse(matches(automaton, "{\"name\":\"Ada\",\"age\":3.5}"));
+        //properties are generated in schema order
+        assertFalse(matches(automaton, "{\"age\":36,\"name\":\"Ada\"}"));
+    }
+
+    @Test
+    void optionalPropertiesOnly() throws IOException {
+        GrammarAutomaton automaton = compile("{\"properties\":{\"a\":{\"type\":\"boolean\"},\"b\":{\"type\":\"null\"}}}");
+        assertTrue(matches(automaton, "{}"));
+        assertTrue(matches(automaton, "{\"b\":null}"));
+        assertTrue(matches(automaton, "{\"a\":true,\"b\":null}"));
+        assertFalse(matches(automaton, "{,\"b\":null}"));
+    }
+
+    @Test
+    void enumAndConst() throws IOException {
+        GrammarAutomaton values = compile("{\"enum\":[\"red\",\"green\",3,null]}");
+        assertTrue(matches(values, "\"red\""));
+        assertTrue(matches(values, "3"));
+        assertTrue(matches(values, "null"));
+        assertFalse(matches(values, "\"blue\""));
+        assertTrue(matches(compile("{\"const\":\"a.b\"}"), "\"a.b\""));
+        assertFalse(matches(compile("{\"const\":\"a.b\"}"), "\"axb\""));
+    }
+
+    @Test
+    void arrayBounds() throws IOException {
+        GrammarAutomaton automaton = compile("{\"type\":\"array\",\"items\":{\"type\":\"integer\"},\"minItems\":1,\"maxItems\":2}");
+        assertFalse(matches(automaton, "[]"));
+        assertTrue(matches(automaton, "[1]"));
+        assertTrue(matches(automaton, "[1, -2]"));
+        assertFalse(matches(automaton, "[1,2,3]"));
+        assertTrue(matches(compile("{\"type\":\"array\",\"items\":{\"type\":\"number\"}}"), "[]"));
+    }
+
+    @Test
+    void stringBoundsAndFormats() throws IOException {
+        GrammarAutomaton bounded = compile("{\"type\":\"string\",\"minLength\":1,\"maxLength\":2}");
+        assertFalse(matches(bounded, "\"\""));
+        assertTrue(matches(bounded, "\"ab\""));
+        assertFalse(matches(bounded, "\"abc\""));
+        assertTrue(matches(compile("{\"type\":\"string\",\"format\":\"date\"}"), "\"2024-01-31\""));
+        assertFalse(matches(compile("{\"type\":\"string\",\"format\":\"date\"}"), "\"31/01/2024\""));
+        assertTrue(matches(compile("{\"type\":\"string\",\"pattern\":\"^[A-Z]{2}$\"}"), "\"FR\""));
+    }
+
+    @Test
+    void typeUnionsAndAnyOf() throws IOException {
+        GrammarAutomaton union = compile("{\"type\":[\"number\",\"null\"]}");
+        assertTrue(matches(union, "1.5e3"));
+        assertTrue(matches(union, "null"));
+        assertFalse(matches(union, "\"1\""));
+        GrammarAutomaton anyOf = compile("{\"anyOf\":[{\"type\":\"boolean\"},{\"type\":\"string\",\"maxLength\":1}]}");
+        assertTrue(matches(anyOf, "false"));
+        assertTrue(matches(anyOf, "\"x\""));
+        assertFalse(matches(anyOf, "1"));
+    }
+
+    @Test
+    void localReferences() throws IOException {
+        GrammarAutomaton automaton = compile("{\"$defs\":{\"id\":{\"type\":\"integer\"}},\"type\":\"object\","
+                + "\"properties\":{\"id\":{\"$ref\":\"#/$defs/id\"}},\"required\":[\"id\"]}");
+        assertTrue(matches(automaton, "{\"id\":7}"));
+        assertFalse(matches(automaton, "{\"id\":\"7\"}"));
+    }
+
+    @Test
+    void freeFormValuesNestUpToTheLimit() throws IOException {
+        GrammarAutomaton automaton = compile("{}");
+        assertTrue(matches(automaton, "{\"a\":[1,{\"b\":null}],\"c\":\"d\"}"));
+        assertFalse(matches(automaton, "{\"a\":"));
+        assertFalse(matches(automaton, "[[[[[1]]]]]"));
+    }
+
+    @Test
+    void unsupportedSchemas() {
+        assertThrows(ServerException.class, () -> JsonSchemaGrammar.toGrammar(MAPPER.readTree("\"string\"")));
+        assertThrows(ServerException.class, () -> JsonSchemaGrammar.toGrammar(null));
+        assertThrows(ServerException.class, () -> compile("{\"type\":\"date\"}"));
+        assertThrows(ServerException.class, () -> compile("{\"$ref\":\"http://example.com/schema\"}"));
+        assertThrows(ServerException.class, () -> compile("{\"$ref\":\"#/$defs/missing\"}"));
+        assertThrows(ServerException.class, () -> compile("{\"$defs\":{\"a\":{\"$ref\":\"#/$defs/a\"}},\"$ref\":\"#/$defs/a\"}"));
+    }
+
+    private static GrammarAutomaton compile(String schema) throws IOException {
+        JsonNode node = MAPPER.readTree(schema);
+        return GrammarAutomaton.compile(JsonSchemaGrammar.toGrammar(node));
+    }
+
+}
@@ -0,0 +1,61 @@
+package chat.octet.components;
+
+import chat.octet.api.model.TokenLogprob;
+import org.junit.jupiter.api.Test;
+
+import static chat.octet.TestTokens.token;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogprobsProcessorTest {
+
+    private static final float NEG = Float.NEGATIVE_INFINITY;
+
+    @Test
+    void logprobIsNormalized() {
+        LogprobsProcessor processor = new LogprobsProcessor(0);
+        processor.processor(new int[0], new float[]{0, 0, NEG, 0});
+        assertEquals(Math.log(1.0 / 3), logprob(processor, 1), 1e-5);
+    }
+
+    @Test
+    void maskedTokenIsClampedToTheFloor() {
+        LogprobsProcessor processor = new LogprobsProcessor(0);
+        processor.processor(new int[0], new float[]{0, NEG});
+        assertFinite(logprob(processor, 1));
+        assertTrue(logprob(processor, 1) < -1000);
+    }
+
+    @Test
+    void everyLogitMaskedStaysFinite() {
+        LogprobsProcessor processor = new LogprobsProcessor(0);
+        processor.processor(new int[0], new float[]{NEG, NEG, Float.NaN});
+        assertFinite(logprob(processor, 0));
+        assertFinite(logprob(processor, 2));
+    }
+
+    @Test
+    void infiniteLogitStaysFinite() {
+        LogprobsProcessor processor = new LogprobsProcessor(0);
+        processor.processor(new int[0], new float[]{Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, 1});
+        assertEquals(0, logprob(processor, 0));
+        assertFinite(logprob(processor, 2));
+    }
+
+    @Test
+    void unknownTokenIsClampedToTheFloor() {
+        LogprobsProcessor processor = new LogprobsProcessor(0);
+        processor.processor(new int[0], new float[]{0, 0});
+        assertFinite(logprob(processor, 7));
+    }
+
+    private static float logprob(LogprobsProcessor processor, int id) {
+        TokenLogprob logprob = processor.resolve(token(id, "t"));
+        return logprob.getLogprob();
+    }
+
+    private static void assertFinite(float value) {
+        assertTrue(Float.isFinite(value), "not finite: " + value);
+    }
+
+}
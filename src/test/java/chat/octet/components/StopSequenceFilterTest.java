@@ -0,0 +1,74 @@
+package chat.octet.components;
+
+import chat.octet.model.enums.FinishReason;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import static chat.octet.TestTokens.finished;
+import static chat.octet.TestTokens.token;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StopSequenceFilterTest {
+
+    @Test
+    void textWithoutStopSequenceIsReleased() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        assertEquals("Hello", filter.apply(token(1, "Hello")));
+        assertEquals(" world", filter.apply(token(2, " world")));
+        assertEquals("", filter.apply(finished(FinishReason.FINISHED)));
+    }
+
+    @Test
+    void stopSequenceSpanningTokensIsDropped() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        StringBuilder output = new StringBuilder();
+        for (String text : new String[]{"Hello", " wor", "ld<", "/", "s>", "after"}) {
+            output.append(filter.apply(token(1, text)));
+        }
+        output.append(filter.apply(finished(FinishReason.STOP)));
+        assertEquals("Hello world", output.toString());
+    }
+
+    @Test
+    void possibleStopSequenceIsHeldBack() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        assertEquals("ab", filter.apply(token(1, "ab<")));
+        assertEquals("", filter.apply(token(2, "/")));
+        //not a stop sequence after all
+        assertEquals("</x", filter.apply(token(3, "x")));
+    }
+
+    @Test
+    void heldBackTextIsFlushedAtTheEnd() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        assertEquals("ab", filter.apply(token(1, "ab</")));
+        assertEquals("</", filter.apply(finished(FinishReason.LENGTH)));
+    }
+
+    @Test
+    void textBeforeTheStopSequenceInTheSameTokenIsReleased() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("STOP"));
+        assertEquals("done", filter.apply(token(1, "doneSTOPmore")));
+        assertEquals("", filter.apply(token(2, "ignored")));
+    }
+
+    @Test
+    void overlappingSequencesCutAtTheFirstMatch() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("s>", "</s>"));
+        StringBuilder output = new StringBuilder();
+        for (String text : new String[]{"ok<", "/", "s", ">"}) {
+            output.append(filter.apply(token(1, text)));
+        }
+        assertEquals("ok", output.toString());
+    }
+
+    @Test
+    void eachChoiceIsFilteredFromAFreshState() {
+        StopSequenceFilter filter = new StopSequenceFilter(Lists.newArrayList("</s>"));
+        assertEquals("a", filter.apply(token(1, "a</s>")));
+        assertEquals("", filter.apply(finished(FinishReason.STOP)));
+        assertEquals("b", filter.apply(token(2, "b")));
+        assertEquals("", filter.apply(finished(FinishReason.FINISHED)));
+    }
+
+}
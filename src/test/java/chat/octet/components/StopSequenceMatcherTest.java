@@ -0,0 +1,87 @@
+package chat.octet.components;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StopSequenceMatcherTest {
+
+    @Test
+    void matchesAcrossFragments() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Lists.newArrayList("</s>"));
+        assertEquals(-1, matcher.feed("Hello <"));
+        assertEquals(1, matcher.getPartialLength());
+        assertEquals(-1, matcher.feed("/s"));
+        assertEquals(3, matcher.getPartialLength());
+        assertEquals(1, matcher.feed("> tail"));
+        assertTrue(matcher.isMatched());
+        assertEquals(4, matcher.getMatchLength());
+    }
+
+    @Test
+    void suffixOfAnotherSequenceReportsTheLongest() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Lists.newArrayList("s>", "</s>"));
+        assertEquals(7, matcher.feed("abc</s>"));
+        assertEquals(4, matcher.getMatchLength());
+    }
+
+    @Test
+    void suffixSequenceMatchesThroughTheFailureLink() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Lists.newArrayList("</s>", "s>"));
+        //"<s>" is no prefix of "</s>", only "s>" completes
+        assertEquals(3, matcher.feed("<s>"));
+        assertEquals(2, matcher.getMatchLength());
+    }
+
+    @Test
+    void firstCompletedSequenceWins() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Lists.newArrayList("abcd", "bc"));
+        assertEquals(3, matcher.feed("abcd"));
+        assertEquals(2, matcher.getMatchLength());
+    }
+
+    @Test
+    void partialMatchRestartsOnMismatch() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Lists.newArrayList("aab"));
+        assertEquals(-1, matcher.feed("aa"));
+        assertEquals(2, matcher.getPartialLength());
+        //"aaa" keeps the "aa" suffix
+        assertEquals(-1, matcher.feed("a"));
+        assertEquals(2, matcher.getPartialLength());
+        assertEquals(1, matcher.feed("b"));
+    }
+
+    @Test
+    void resetForgetsTheState() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Lists.newArrayList("stop"));
+        assertEquals(4, matcher.feed("stop"));
+        matcher.reset();
+        assertFalse(matcher.isMatched());
+        assertEquals(0, matcher.getPartialLength());
+        assertEquals(-1, matcher.feed("sto"));
+    }
+
+    @Test
+    void emptySequencesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new StopSequenceMatcher(Lists.newArrayList("", null)));
+    }
+
+    @Test
+    void truncate() {
+        assertEquals("Hello", StopSequenceMatcher.truncate(Lists.newArrayList("</s>"), "Hello</s>world</s>"));
+        assertEquals("Hello world", StopSequenceMatcher.truncate(Lists.newArrayList("</s>"), "Hello world"));
+        assertEquals("", StopSequenceMatcher.truncate(Lists.newArrayList("</s>"), "</s>"));
+        assertEquals("ab", StopSequenceMatcher.truncate(Lists.newArrayList("cde", "cd"), "abcdef"));
+        assertEquals("text", StopSequenceMatcher.truncate(Collections.singletonList(""), "text"));
+        assertEquals("text", StopSequenceMatcher.truncate(null, "text"));
+        assertNull(StopSequenceMatcher.truncate(Lists.newArrayList("</s>"), null));
+    }
+
+}
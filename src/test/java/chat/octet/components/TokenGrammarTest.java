@@ -0,0 +1,161 @@
+package chat.octet.components;
+
+import chat.octet.exceptions.ServerException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenGrammarTest {
+
+    private static final int EOS = 0;
+    //0: end of sequence, 6: partial UTF-8 character
+    private static final String[] TEXTS = {"", "a", "b", "ab", "ba", "c", "�"};
+
+    @Test
+    void maskAllowsTheTokensTheGrammarAccepts() {
+        TokenGrammar grammar = grammar("(ab)+");
+        int start = grammar.getStart();
+        assertEquals(bits(1, 3), BitSet.valueOf(grammar.getMask(start)));
+
+        int a = grammar.advance(start, 1);
+        assertEquals(bits(2, 4), BitSet.valueOf(grammar.getMask(a)));
+
+        int ab = grammar.advance(start, 3);
+        assertTrue(grammar.isAccepting(ab));
+        assertFalse(grammar.isTerminal(ab));
+        //control tokens only once the grammar is complete
+        assertEquals(bits(0, 1, 3), BitSet.valueOf(grammar.getMask(ab)));
+    }
+
+    @Test
+    void disallowedTokensLeadToTheDeadState() {
+        TokenGrammar grammar = grammar("(ab)+");
+        assertEquals(GrammarAutomaton.DEAD, grammar.advance(grammar.getStart(), 2));
+        assertEquals(GrammarAutomaton.DEAD, grammar.advance(grammar.getStart(), 6));
+        assertEquals(GrammarAutomaton.DEAD, grammar.advance(grammar.getStart(), 99));
+        assertNull(grammar.getMask(GrammarAutomaton.DEAD));
+    }
+
+    @Test
+    void completeGrammarOnlyAllowsTheEnd() {
+        TokenGrammar grammar = grammar("ab");
+        int ab = grammar.advance(grammar.advance(grammar.getStart(), 1), 2);
+        assertTrue(grammar.isAccepting(ab));
+        assertTrue(grammar.isTerminal(ab));
+        assertEquals(bits(0), BitSet.valueOf(grammar.getMask(ab)));
+    }
+
+    @Test
+    void precomputeBuildsEveryReachableState() {
+        TokenGrammar grammar = grammar("(ab)+");
+        assertFalse(grammar.isReady());
+        grammar.precompute();
+        assertTrue(grammar.isReady());
+        int count = grammar.getMaskCount();
+        int state = grammar.getStart();
+        for (int id : new int[]{1, 4, 2, 3, 1, 2}) {
+            state = grammar.advance(state, id);
+            assertNotNull(grammar.getMask(state));
+        }
+        assertEquals(bits(0, 1, 3), BitSet.valueOf(grammar.getMask(state)));
+        //nothing is built after precompute
+        assertEquals(count, grammar.getMaskCount());
+    }
+
+    @Test
+    void precomputeResumesWhereTheLastCallStopped() {
+        TokenGrammar grammar = grammar("(ab)+");
+        assertFalse(grammar.precompute(1));
+        assertEquals(1, grammar.getMaskCount());
+        while (!grammar.precompute(1)) {
+            assertFalse(grammar.isReady());
+        }
+        assertTrue(grammar.isReady());
+        TokenGrammar whole = grammar("(ab)+");
+        whole.precompute();
+        assertEquals(whole.getMaskCount(), grammar.getMaskCount());
+    }
+
+    @Test
+    void precomputeMatchesTheLazyMasks() {
+        TokenGrammar lazy = grammar("(a|ba)*c?");
+        TokenGrammar precomputed = grammar("(a|ba)*c?");
+        precomputed.precompute();
+        int[] path = {1, 4, 1, 5};
+        int lazyState = lazy.getStart();
+        int state = precomputed.getStart();
+        for (int id : path) {
+            assertTrue(Arrays.equals(lazy.getMask(lazyState), precomputed.getMask(state)));
+            lazyState = lazy.advance(lazyState, id);
+            state = precomputed.advance(state, id);
+        }
+        assertTrue(Arrays.equals(lazy.getMask(lazyState), precomputed.getMask(state)));
+    }
+
+    @Test
+    void precomputeIsBoundedByTheStateLimit() {
+        //the DFA of the 16th character from the end has 2^16 states
+        TokenGrammar grammar = grammar("[ab]*a[ab]{15}");
+        ServerException e = assertThrows(ServerException.class, grammar::precompute);
+        assertTrue(e.getMessage().startsWith("Grammar is too complex"), e.getMessage());
+        assertSame(e, assertThrows(ServerException.class, grammar::precompute));
+        assertFalse(grammar.isReady());
+    }
+
+    @Test
+    void endMaskIsTheEndOfSequence() {
+        assertEquals(bits(EOS), BitSet.valueOf(grammar("a").getEndMask()));
+        TokenVocabulary unknownEos = new TokenVocabulary(new String[]{"a", "", "b", ""}, -1);
+        TokenGrammar grammar = new TokenGrammar(GrammarAutomaton.compile("a"), () -> unknownEos);
+        assertEquals(bits(1, 3), BitSet.valueOf(grammar.getEndMask()));
+    }
+
+    @Test
+    void noAllowedTokenForcesTheEndOfSequence() {
+        TokenGrammar grammar = grammar("x");
+        grammar.precompute();
+        assertNull(grammar.getMask(grammar.getStart()));
+        float[] scores = new float[TEXTS.length];
+        Arrays.fill(scores, 1f);
+        new GrammarLogitsProcessor(grammar).processor(new int[0], scores);
+        for (int id = 0; id < scores.length; id++) {
+            assertEquals(id == EOS ? 1f : Float.NEGATIVE_INFINITY, scores[id], "token " + id);
+        }
+    }
+
+    @Test
+    void processorMasksAndAdvances() {
+        GrammarLogitsProcessor processor = new GrammarLogitsProcessor(grammar("ab"));
+        float[] scores = new float[TEXTS.length];
+        processor.processor(new int[0], scores);
+        assertEquals(0f, scores[1]);
+        assertEquals(0f, scores[3]);
+        assertEquals(Float.NEGATIVE_INFINITY, scores[2]);
+        assertEquals(Float.NEGATIVE_INFINITY, scores[EOS]);
+        //"ab" completes the grammar, nothing may follow
+        assertTrue(processor.criteria(new int[]{9, 3}, scores));
+    }
+
+    private static TokenGrammar grammar(String pattern) {
+        TokenVocabulary vocabulary = new TokenVocabulary(TEXTS, EOS);
+        return new TokenGrammar(GrammarAutomaton.compile(pattern), () -> vocabulary);
+    }
+
+    private static BitSet bits(int... ids) {
+        BitSet bits = new BitSet();
+        for (int id : ids) {
+            bits.set(id);
+        }
+        return bits;
+    }
+
+}
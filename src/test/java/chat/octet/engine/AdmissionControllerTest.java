@@ -0,0 +1,115 @@
+package chat.octet.engine;
+
+import chat.octet.exceptions.TooManyRequestsException;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControllerTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final AdmissionController controller = new AdmissionController(2, 4, Duration.ofSeconds(30));
+
+    @Test
+    void ticketsAreGrantedUpToTheLimit() {
+        AdmissionController.Ticket first = controller.acquire("model", "a").block(TIMEOUT);
+        AdmissionController.Ticket second = controller.acquire("model", "b").block(TIMEOUT);
+        AtomicReference<AdmissionController.Ticket> third = new AtomicReference<>();
+        controller.acquire("model", "c").subscribe(third::set);
+        assertNull(third.get());
+        assertEquals(1, controller.getQueues().get("model").getQueued());
+        first.release();
+        assertNotNull(third.get());
+        second.release();
+        third.get().release();
+        assertEquals(0, controller.getQueues().get("model").getRunning());
+    }
+
+    @Test
+    void fullQueueIsRejected() {
+        AdmissionController small = new AdmissionController(1, 0, Duration.ofSeconds(30));
+        small.acquire("model", null).block(TIMEOUT);
+        assertThrows(TooManyRequestsException.class, () -> small.acquire("model", null).block(TIMEOUT));
+    }
+
+    @Test
+    void exclusiveWaitsForTheTicketsInFlight() {
+        AdmissionController.Ticket running = controller.acquire("model", "a").block(TIMEOUT);
+        Sinks.One<String> task = Sinks.one();
+        AtomicBoolean started = new AtomicBoolean();
+        AtomicReference<String> result = new AtomicReference<>();
+        controller.exclusive("model", Mono.defer(() -> {
+            started.set(true);
+            return task.asMono();
+        })).subscribe(result::set);
+        assertTrue(controller.getQueues().get("model").isPaused());
+        //not granted while paused, though below the limit
+        AtomicReference<AdmissionController.Ticket> queued = new AtomicReference<>();
+        controller.acquire("model", "b").subscribe(queued::set);
+        assertNull(queued.get());
+        assertFalse(started.get());
+
+        running.release();
+        assertTrue(started.get());
+        assertNull(queued.get());
+
+        task.tryEmitValue("swapped");
+        assertEquals("swapped", result.get());
+        assertFalse(controller.getQueues().get("model").isPaused());
+        assertNotNull(queued.get());
+    }
+
+    @Test
+    void embeddingsAreQueuedApart() {
+        AdmissionController small = new AdmissionController(1, 0, Duration.ofSeconds(30));
+        small.acquire("model", null).block(TIMEOUT);
+        AdmissionController.Ticket embedding = small.acquireEmbedding("model", null).block(TIMEOUT);
+        assertNotNull(embedding);
+        //paused by the model swaps too
+        AtomicReference<String> result = new AtomicReference<>();
+        small.exclusive("model", Mono.just("swapped")).subscribe(result::set);
+        assertTrue(small.getQueues().get(AdmissionController.getEmbeddingQueue("model")).isPaused());
+        embedding.release();
+        assertNull(result.get());
+    }
+
+    @Test
+    void exclusiveRunsRightAwayWhenIdle() {
+        assertEquals("done", controller.exclusive("Model", Mono.just("done")).block(TIMEOUT));
+        assertNotNull(controller.acquire("model", null).block(TIMEOUT));
+    }
+
+    @Test
+    void cancelledExclusiveResumesAdmission() {
+        AdmissionController.Ticket running = controller.acquire("model", "a").block(TIMEOUT);
+        controller.exclusive("model", Mono.just("never")).subscribe().dispose();
+        assertFalse(controller.getQueues().get("model").isPaused());
+        assertNotNull(controller.acquire("model", "b").block(TIMEOUT));
+        running.release();
+    }
+
+    @Test
+    void scopeReleasesTheTicketsOfTheRequest() {
+        AdmissionController.Scope scope = new AdmissionController.Scope();
+        controller.acquire("model", null).contextWrite(context -> context.put(AdmissionController.Scope.class, scope)).block(TIMEOUT);
+        assertEquals(1, controller.getQueues().get("model").getRunning());
+        AtomicBoolean cleaned = new AtomicBoolean();
+        scope.onRelease(() -> cleaned.set(true));
+        scope.release();
+        assertEquals(0, controller.getQueues().get("model").getRunning());
+        assertTrue(cleaned.get());
+    }
+
+}
@@ -0,0 +1,63 @@
+package chat.octet.engine;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ResponseCacheTest {
+
+    private static final HashCode KEY = HashCode.fromInt(1);
+
+    private final ResponseCache cache = new ResponseCache(1024, Duration.ofMinutes(1), Duration.ofMillis(200));
+
+    @Test
+    void followerReceivesTheLeaderResponse() {
+        assertNull(cache.join(KEY));
+        Mono<ResponseCache.CachedResponse> follower = cache.join(KEY);
+        assertNotNull(follower);
+        ResponseCache.CachedResponse response = response();
+        StepVerifier.create(follower).then(() -> cache.complete(KEY, response)).expectNext(response).verifyComplete();
+        assertSame(response, cache.get(KEY));
+    }
+
+    @Test
+    void followerTimesOutEmpty() {
+        assertNull(cache.join(KEY));
+        StepVerifier.create(cache.join(KEY)).expectComplete().verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void abandonerReleasesTheFollowers() {
+        assertNull(cache.join(KEY));
+        Runnable abandoner = cache.abandoner(KEY);
+        StepVerifier.create(cache.join(KEY)).then(abandoner).expectComplete().verify(Duration.ofMillis(100));
+        //the key can be led again
+        assertNull(cache.join(KEY));
+    }
+
+    @Test
+    void abandonerKeepsTheNextLeader() {
+        assertNull(cache.join(KEY));
+        Runnable abandoner = cache.abandoner(KEY);
+        cache.complete(KEY, response());
+        assertNull(cache.join(KEY));
+        //runs once the first exchange completes, the second leader is untouched
+        abandoner.run();
+        ResponseCache.CachedResponse next = response();
+        StepVerifier.create(cache.join(KEY)).then(() -> cache.complete(KEY, next)).expectNext(next).verifyComplete();
+    }
+
+    private static ResponseCache.CachedResponse response() {
+        return new ResponseCache.CachedResponse("model", Lists.newArrayList(Pair.of("text", "STOP")));
+    }
+
+}
@@ -0,0 +1,131 @@
+package chat.octet.engine;
+
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void snapshotRoundTrip() throws IOException {
+        SessionStore store = new SessionStore(directory, 1 << 20);
+        List<ChatSession.Message> history = Lists.newArrayList(
+                new ChatSession.Message(ChatSessionManager.ROLE_USER, "Hello, 你好 😀", 7),
+                new ChatSession.Message(ChatSessionManager.ROLE_ASSISTANT, "Hi!\nHow can I help?", 9));
+        store.save(new ChatSession("alice", "Llama2-chat", 3L, "You are a helpful assistant.", "folded prompt", history));
+
+        ChatSession session = store.load("alice");
+        assertNotNull(session);
+        assertEquals("alice", session.getUser());
+        assertEquals("Llama2-chat", session.getModel());
+        assertEquals("You are a helpful assistant.", session.getSystem());
+        assertEquals("folded prompt", session.getPrompt());
+        assertEquals(2, session.getHistory().size());
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals(history.get(i).getRole(), session.getHistory().get(i).getRole());
+            assertEquals(history.get(i).getContent(), session.getHistory().get(i).getContent());
+            assertEquals(history.get(i).getTokens(), session.getHistory().get(i).getTokens());
+        }
+        assertEquals(16, session.getTokens());
+        //its turns are no longer in the model context
+        assertTrue(session.isRestored());
+        assertEquals(0L, session.getGeneration());
+    }
+
+    @Test
+    void nullStringsRoundTrip() throws IOException {
+        SessionStore store = new SessionStore(directory, 1 << 20);
+        store.save(new ChatSession("bob", "Llama2-chat", 1L, null, null, Lists.newArrayList()));
+
+        ChatSession session = store.load("bob");
+        assertNotNull(session);
+        assertNull(session.getSystem());
+        assertNull(session.getPrompt());
+        assertTrue(session.getHistory().isEmpty());
+    }
+
+    @Test
+    void snapshotIsRemovedOnceLoaded() throws IOException {
+        SessionStore store = new SessionStore(directory, 1 << 20);
+        store.save(session("alice", "Hello"));
+        assertEquals(1, store.getSize());
+
+        assertNotNull(store.load("alice"));
+        assertEquals(0, store.getSize());
+        assertNull(store.load("alice"));
+        assertNull(store.load("unknown"));
+    }
+
+    @Test
+    void corruptedSnapshotIsDropped() throws IOException {
+        SessionStore store = new SessionStore(directory, 1 << 20);
+        store.save(session("alice", "Hello"));
+        for (Path file : snapshots()) {
+            Files.write(file, "not a snapshot".getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertNull(store.load("alice"));
+        assertEquals(0, store.getSize());
+    }
+
+    @Test
+    void oldestSnapshotsAreTrimmed() throws IOException {
+        SessionStore unbounded = new SessionStore(directory, 1 << 20);
+        unbounded.save(session("user1", "Hello"));
+        Path first = snapshots().get(0);
+        Files.setLastModifiedTime(first, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+
+        //room for two snapshots of the same size
+        SessionStore store = new SessionStore(directory, Files.size(first) * 2);
+        store.save(session("user2", "Hello"));
+        store.save(session("user3", "Hello"));
+
+        assertEquals(2, store.getSize());
+        assertNull(store.load("user1"));
+        assertNotNull(store.load("user2"));
+        assertNotNull(store.load("user3"));
+    }
+
+    @Test
+    void removeAndClear() throws IOException {
+        SessionStore store = new SessionStore(directory, 1 << 20);
+        store.save(session("alice", "Hello"));
+        store.save(session("bob", "Hello"));
+
+        store.remove("alice");
+        assertNull(store.load("alice"));
+        assertEquals(1, store.getSize());
+        store.clear();
+        assertEquals(0, store.getSize());
+    }
+
+    private static ChatSession session(String user, String content) {
+        return new ChatSession(user, "Llama2-chat", 1L, "system", "system", Lists.newArrayList(
+                new ChatSession.Message(ChatSessionManager.ROLE_USER, content, 2),
+                new ChatSession.Message(ChatSessionManager.ROLE_ASSISTANT, content, 2)));
+    }
+
+    private List<Path> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".session")).collect(Collectors.toList());
+        }
+    }
+
+}